@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Synthetic values shared by the benchmarks. Values vary with the row so
+ * caches and branch predictors do not see the same value over and over.
+ *
+ * @author ldoguin
+ */
+final class BenchmarkData {
+
+	/** Number of distinct rows generated by each benchmark. */
+	static final int ROWS = 1024;
+
+	private static final DateTimeFormatter CSV_DATE_FORMAT = DateTimeFormatter
+			.ofPattern("EEE MMM dd HH:mm:ss z yyyy", Locale.US).withZone(
+					ZoneOffset.UTC);
+
+	private BenchmarkData() {
+	}
+
+	static String csvValue(CSVConfig.RowType type, int row, int column) {
+		switch (type) {
+		case LONG:
+			return Long.toString(row * 1000L + column);
+		case DOUBLE:
+			return Double.toString(row / 7.0 + column);
+		case BOOLEAN:
+			return Boolean.toString((row + column) % 2 == 0);
+		case DATE:
+			return CSV_DATE_FORMAT.format(Instant.ofEpochSecond(1420070400L
+					+ (row % 365) * 86400L));
+		default:
+			return "value " + row + " of column " + column;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.couchbase.client.java.document.Document;
+
+/**
+ * Conversion of a parsed CSV line to a {@link Document} by
+ * {@link CSVConfig#createDocument(String[])}, for lines of the given number
+ * of columns of the given type. MIXED cycles through every type.
+ *
+ * @author ldoguin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CSVBenchmark {
+
+	@Param({ "8", "32" })
+	int columns;
+
+	@Param({ "STRING", "LONG", "DOUBLE", "BOOLEAN", "DATE", "MIXED" })
+	String type;
+
+	private CSVConfig config;
+
+	private String[][] lines;
+
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		config = new CSVConfig();
+		config.setLanguageTag("en-US");
+		List<String> names = new ArrayList<String>();
+		List<String> types = new ArrayList<String>();
+		CSVConfig.RowType[] values = CSVConfig.RowType.values();
+		for (int i = 0; i < columns; i++) {
+			names.add("column" + i);
+			types.add("MIXED".equals(type) ? values[i % values.length].name()
+					: type);
+		}
+		config.setColumName(names);
+		config.setColumType(types);
+		config.resolveColumns();
+		lines = new String[BenchmarkData.ROWS][columns];
+		for (int row = 0; row < lines.length; row++) {
+			for (int i = 0; i < columns; i++) {
+				lines[row][i] = BenchmarkData.csvValue(
+						CSVConfig.RowType.valueOf(types.get(i)), row, i);
+			}
+		}
+	}
+
+	@Benchmark
+	public Document createDocument() {
+		String[] line = lines[next];
+		next = (next + 1) % lines.length;
+		return config.createDocument(line);
+	}
+}
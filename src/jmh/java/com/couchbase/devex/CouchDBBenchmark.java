@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading of an _all_docs?include_docs=true response by
+ * {@link CouchDBRowIterator}, for documents of the given number of fields.
+ * Scores are rows per second.
+ *
+ * @author ldoguin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CouchDBBenchmark {
+
+	@Param({ "8", "32" })
+	int fields;
+
+	private byte[] response;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"total_rows\":").append(BenchmarkData.ROWS)
+				.append(",\"offset\":0,\"rows\":[\n");
+		for (int row = 0; row < BenchmarkData.ROWS; row++) {
+			String id = String.format("doc%06d", row);
+			sb.append(row == 0 ? "" : ",\n").append("{\"id\":\"").append(id)
+					.append("\",\"key\":\"").append(id)
+					.append("\",\"value\":{\"rev\":\"1-abc\"},\"doc\":{\"_id\":\"")
+					.append(id).append("\",\"_rev\":\"1-abc\"");
+			for (int i = 0; i < fields; i++) {
+				sb.append(",\"field").append(i).append("\":");
+				if (i % 2 == 0) {
+					sb.append("\"value ").append(row).append(" of field ")
+							.append(i).append('"');
+				} else {
+					sb.append(row * 1000L + i);
+				}
+			}
+			sb.append("}}");
+		}
+		sb.append("\n]}");
+		response = sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.ROWS)
+	public void readRows(Blackhole blackhole) throws IOException {
+		try (CouchDBRowIterator rows = new CouchDBRowIterator(
+				new ByteArrayInputStream(response))) {
+			while (rows.hasNext()) {
+				blackhole.consume(rows.next());
+			}
+		}
+	}
+}
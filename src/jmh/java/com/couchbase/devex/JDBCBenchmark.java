@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.lang.reflect.Proxy;
+import java.sql.JDBCType;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.couchbase.client.java.document.Document;
+
+/**
+ * Mapping of a JDBC row to a {@link Document} by
+ * {@link JDBCConfig.JSONRowMapper}, for rows of the given number of columns
+ * of the given SQL type. MIXED cycles through every type. Rows are served by
+ * an in memory {@link ResultSet}, so only the mapping is measured.
+ *
+ * @author ldoguin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JDBCBenchmark {
+
+	private static final JDBCType[] MIXED = { JDBCType.INTEGER,
+			JDBCType.BIGINT, JDBCType.DOUBLE, JDBCType.VARCHAR,
+			JDBCType.TIMESTAMP, JDBCType.BOOLEAN };
+
+	@Param({ "8", "32" })
+	int columns;
+
+	@Param({ "INTEGER", "BIGINT", "DOUBLE", "VARCHAR", "TIMESTAMP", "MIXED" })
+	String type;
+
+	private JDBCConfig.JSONRowMapper rowMapper;
+
+	private Object[][] rows;
+
+	private int current = 0;
+
+	private ResultSet resultSet;
+
+	@Setup
+	public void setup() {
+		JDBCConfig config = new JDBCConfig();
+		JDBCConfig.Table table = config.new Table("bench");
+		JDBCType[] types = new JDBCType[columns];
+		for (int i = 0; i < columns; i++) {
+			types[i] = "MIXED".equals(type) ? MIXED[i % MIXED.length]
+					: JDBCType.valueOf(type);
+			// the first column is the primary key
+			if (i == 0) {
+				types[i] = JDBCType.BIGINT;
+			}
+			table.addColumn("column" + i, types[i].getVendorTypeNumber());
+		}
+		table.setPrimaryKey(Collections.singletonList("column0"));
+		rowMapper = config.new JSONRowMapper(table, null);
+		rows = new Object[BenchmarkData.ROWS][columns];
+		for (int row = 0; row < rows.length; row++) {
+			for (int i = 0; i < columns; i++) {
+				rows[row][i] = value(types[i], row, i);
+			}
+		}
+		// signed columns, every BOOLEAN being a BIT(1)
+		ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { ResultSetMetaData.class }, (proxy, method,
+						args) -> {
+					switch (method.getName()) {
+					case "isSigned":
+						return true;
+					case "getPrecision":
+						return 1;
+					default:
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+		resultSet = (ResultSet) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { ResultSet.class }, (proxy,
+				method, args) -> {
+			switch (method.getName()) {
+			case "getMetaData":
+				return metaData;
+			case "findColumn":
+				return Integer.parseInt(((String) args[0]).substring(6)) + 1;
+			case "wasNull":
+				return false;
+			case "getInt":
+				return ((Number) column(args)).intValue();
+			case "getLong":
+				return ((Number) column(args)).longValue();
+			case "getDouble":
+				return ((Number) column(args)).doubleValue();
+			case "getBoolean":
+				return (Boolean) column(args);
+			case "getString":
+				return String.valueOf(column(args));
+			case "getTimestamp":
+			case "getObject":
+				return column(args);
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private Object column(Object[] args) {
+		return rows[current][(Integer) args[0] - 1];
+	}
+
+	private static Object value(JDBCType type, int row, int column) {
+		switch (type) {
+		case INTEGER:
+			return row + column;
+		case BIGINT:
+			return row * 1000L + column;
+		case DOUBLE:
+			return row / 7.0 + column;
+		case BOOLEAN:
+			return (row + column) % 2 == 0;
+		case TIMESTAMP:
+			return new Timestamp(1420070400000L + row * 86400000L);
+		default:
+			return "value " + row + " of column " + column;
+		}
+	}
+
+	@Benchmark
+	public Document mapRow() throws SQLException {
+		current = (current + 1) % rows.length;
+		return rowMapper.mapRow(resultSet, current);
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.RawJsonDocument;
+
+/**
+ * Conversion of a raw BSON MongoDB document to a {@link Document} by
+ * {@link BsonJsonWriter}, compared to decoding it to an
+ * {@link org.bson.Document} and calling toJson(), for documents of the given
+ * number of fields, mixing strings, numbers, dates and nested documents.
+ *
+ * @author ldoguin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MongoDBBenchmark {
+
+	@Param({ "8", "32" })
+	int fields;
+
+	private BsonJsonWriter writer;
+
+	private RawBsonDocument[] documents;
+
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		writer = new BsonJsonWriter("type", "restaurant",
+				BsonJsonWriter.JsonMode.STRICT);
+		documents = new RawBsonDocument[BenchmarkData.ROWS];
+		for (int row = 0; row < documents.length; row++) {
+			org.bson.Document document = new org.bson.Document("_id",
+					new ObjectId());
+			for (int i = 0; i < fields; i++) {
+				switch (i % 4) {
+				case 0:
+					document.put("field" + i, "value " + row + " of field " + i);
+					break;
+				case 1:
+					document.put("field" + i, row * 1000L + i);
+					break;
+				case 2:
+					document.put("field" + i, new Date(1420070400000L + row));
+					break;
+				default:
+					document.put("field" + i, new org.bson.Document("score",
+							row / 7.0).append("grade", "A"));
+				}
+			}
+			documents[row] = new RawBsonDocument(document, new DocumentCodec());
+		}
+	}
+
+	@Benchmark
+	public Document rawBson() throws IOException {
+		return writer.toDocument(nextDocument());
+	}
+
+	@Benchmark
+	public Document decodeToJson() {
+		org.bson.Document document = nextDocument().decode(new DocumentCodec());
+		document.put("type", "restaurant");
+		return RawJsonDocument.create(document.getObjectId("_id")
+				.toHexString(), document.toJson());
+	}
+
+	private RawBsonDocument nextDocument() {
+		RawBsonDocument document = documents[next];
+		next = (next + 1) % documents.length;
+		return document;
+	}
+}
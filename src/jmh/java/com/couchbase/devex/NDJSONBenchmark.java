@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * Conversion of a JSON line to a {@link Document} by
+ * {@link NDJSONConfig#createDocument(ByteBuf)}, which only parses the line up
+ * to its key, compared to parsing the whole line to a {@link JsonObject},
+ * for lines of the given number of fields with the key first or last.
+ *
+ * @author ldoguin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NDJSONBenchmark {
+
+	@Param({ "8", "32" })
+	int fields;
+
+	@Param({ "true", "false" })
+	boolean keyFirst;
+
+	private NDJSONConfig config;
+
+	private ByteBuf[] lines;
+
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		config = new NDJSONConfig();
+		config.setKeyField("id");
+		lines = new ByteBuf[BenchmarkData.ROWS];
+		for (int row = 0; row < lines.length; row++) {
+			JsonObject line = JsonObject.create();
+			if (keyFirst) {
+				line.put("id", "line" + row);
+			}
+			for (int i = 0; i < fields; i++) {
+				switch (i % 3) {
+				case 0:
+					line.put("field" + i, "value " + row + " of field " + i);
+					break;
+				case 1:
+					line.put("field" + i, row * 1000L + i);
+					break;
+				default:
+					line.put("field" + i, JsonObject.create()
+							.put("score", row / 7.0).put("grade", "A"));
+				}
+			}
+			String json = line.toString();
+			if (!keyFirst) {
+				json = json.substring(0, json.length() - 1) + ",\"id\":\"line"
+						+ row + "\"}";
+			}
+			lines[row] = Unpooled.wrappedBuffer(json
+					.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private ByteBuf nextLine() {
+		ByteBuf line = lines[next];
+		next = (next + 1) % lines.length;
+		return line;
+	}
+
+	@Benchmark
+	public Document rawLine() throws IOException {
+		return config.createDocument(nextLine());
+	}
+
+	@Benchmark
+	public Document parseToJsonObject() {
+		String json = nextLine().toString(StandardCharsets.UTF_8);
+		return RawJsonDocument.create(JsonObject.fromJson(json).getString("id"),
+				json);
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * End to end import of a CSV file: parsing, encoding, concurrency control,
+ * retries and key journals, the Couchbase bucket being replaced by the
+ * {@link StubSink} acknowledging each upsert after the given latency. Scores
+ * are documents per second.
+ *
+ * @author ldoguin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+	private static final int DOCUMENTS = 100000;
+
+	@Param({ "0", "500" })
+	long upsertLatencyMicros;
+
+	@Param({ "1", "4" })
+	int parallelism;
+
+	@Param({ "1", "64" })
+	int batchSize;
+
+	private File directory;
+
+	private AnnotationConfigApplicationContext context;
+
+	private CSVConfig csvConfig;
+
+	private ImportJsonToCouchbase importJsonToCouchbase;
+
+	@Configuration
+	@EnableConfigurationProperties
+	static class PropertiesConfig {
+
+		@Bean
+		public static PropertySourcesPlaceholderConfigurer properties() {
+			return new PropertySourcesPlaceholderConfigurer();
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("pipeline-benchmark").toFile();
+		File csv = new File(directory, "benchmark.csv");
+		CSVConfig.RowType[] types = CSVConfig.RowType.values();
+		try (PrintWriter writer = new PrintWriter(csv, "UTF-8")) {
+			for (int row = 0; row < DOCUMENTS; row++) {
+				for (int i = 0; i < 16; i++) {
+					writer.print(i == 0 ? "" : ";");
+					writer.print(i == 0 ? Integer.toString(row) : BenchmarkData
+							.csvValue(types[i % types.length], row, i));
+				}
+				writer.print('\n');
+			}
+		}
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("successLogFilename", new File(directory, "success.out")
+				.getPath());
+		properties.put("errorLogFilename", new File(directory, "error.out")
+				.getPath());
+		properties.put("metricsInterval", 0);
+		properties.put("checkpointInterval", 0);
+		properties.put("sink", "STUB");
+		properties.put("stub.latency", upsertLatencyMicros);
+		properties.put("batchSize", batchSize);
+		context = new AnnotationConfigApplicationContext();
+		context.getEnvironment().getPropertySources()
+				.addFirst(new MapPropertySource("benchmark", properties));
+		context.register(PropertiesConfig.class, StubSink.class,
+				ThroughputController.class, ImportMetrics.class,
+				Checkpoints.class, DocumentCompressor.class,
+				ContentHashIndex.class, ImportJsonToCouchbase.class);
+		context.refresh();
+		importJsonToCouchbase = context.getBean(ImportJsonToCouchbase.class);
+
+		csvConfig = new CSVConfig();
+		context.getAutowireCapableBeanFactory().autowireBean(csvConfig);
+		csvConfig.setCsvFilePath(csv.getPath());
+		csvConfig.setColumnSeparator(';');
+		csvConfig.setSkipFirstLineForNames(true);
+		csvConfig.setLanguageTag("en-US");
+		csvConfig.setParallelism(parallelism);
+		String[] names = new String[16];
+		String[] columnTypes = new String[16];
+		for (int i = 0; i < 16; i++) {
+			names[i] = "column" + i;
+			columnTypes[i] = i == 0 ? "LONG" : types[i % types.length].name();
+		}
+		csvConfig.setColumName(Arrays.asList(names));
+		csvConfig.setColumType(Arrays.asList(columnTypes));
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCUMENTS)
+	public int importFile() {
+		return importJsonToCouchbase.importDocuments(csvConfig.startImport())
+				.count().toBlocking().single();
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.IOException;
+
+import org.bson.BsonBinary;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDbPointer;
+import org.bson.BsonReader;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Convert raw BSON documents to {@link ByteBufJsonDocument}, reading the
+ * BSON bytes with a {@link BsonReader} and writing each value straight to a
+ * {@link JsonDocumentWriter}. No intermediate map or JSON String is built.
+ * The type field is written in place of an existing field of the same name,
+ * or appended at the end of the document. The key of the document is the hex
+ * value of its ObjectId, between keyPrefix and keySuffix. An instance must
+ * only be used by one thread at a time.
+ *
+ * @author ldoguin
+ */
+public class BsonJsonWriter {
+
+	/**
+	 * How values without a JSON equivalent are written.
+	 */
+	public enum JsonMode {
+		/**
+		 * MongoDB strict mode extended JSON, the output of
+		 * {@link org.bson.Document#toJson()}, e.g. {"$oid": "..."}.
+		 */
+		STRICT,
+		/**
+		 * ObjectIds as their hex value, dates as milliseconds since the epoch,
+		 * 64 bit integers as numbers, binary data as Base64 strings and
+		 * symbols and code as strings. Other types are written as in STRICT.
+		 */
+		PLAIN
+	}
+
+	private static final String ID_FIELD = "_id";
+
+	private final String typeField;
+
+	private final String type;
+
+	private final JsonMode mode;
+
+	private final String keyPrefix;
+
+	private final String keySuffix;
+
+	private final JsonDocumentWriter writer = new JsonDocumentWriter();
+
+	public BsonJsonWriter(String typeField, String type, JsonMode mode) {
+		this(typeField, type, mode, "", "");
+	}
+
+	public BsonJsonWriter(String typeField, String type, JsonMode mode,
+			String keyPrefix, String keySuffix) {
+		this.typeField = typeField;
+		this.type = type;
+		this.mode = mode;
+		this.keyPrefix = keyPrefix;
+		this.keySuffix = keySuffix;
+	}
+
+	/**
+	 * Extract the hex value of the ObjectId from a key created by this
+	 * writer.
+	 */
+	public String objectId(String key) {
+		return key.substring(keyPrefix.length(),
+				key.length() - keySuffix.length());
+	}
+
+	public ByteBufJsonDocument toDocument(RawBsonDocument document)
+			throws IOException {
+		JsonGenerator gen = writer.start();
+		String id = null;
+		boolean typeWritten = false;
+		try (BsonBinaryReader reader = new BsonBinaryReader(document
+				.getByteBuffer().asNIO())) {
+			reader.readStartDocument();
+			gen.writeStartObject();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				String name = reader.readName();
+				gen.writeFieldName(name);
+				if (name.equals(typeField)) {
+					reader.skipValue();
+					gen.writeString(type);
+					typeWritten = true;
+				} else if (name.equals(ID_FIELD)
+						&& reader.getCurrentBsonType() == BsonType.OBJECT_ID) {
+					id = reader.readObjectId().toHexString();
+					writeObjectId(id, gen);
+				} else {
+					writeValue(reader, gen);
+				}
+			}
+			reader.readEndDocument();
+			if (!typeWritten) {
+				gen.writeStringField(typeField, type);
+			}
+			gen.writeEndObject();
+		}
+		if (id == null) {
+			throw new IllegalArgumentException(
+					"Document without an ObjectId _id: " + document.toJson());
+		}
+		return writer.finish(keyPrefix.isEmpty() && keySuffix.isEmpty() ? id
+				: keyPrefix + id + keySuffix);
+	}
+
+	private void writeDocument(BsonReader reader, JsonGenerator gen)
+			throws IOException {
+		reader.readStartDocument();
+		gen.writeStartObject();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			gen.writeFieldName(reader.readName());
+			writeValue(reader, gen);
+		}
+		reader.readEndDocument();
+		gen.writeEndObject();
+	}
+
+	private void writeValue(BsonReader reader, JsonGenerator gen)
+			throws IOException {
+		switch (reader.getCurrentBsonType()) {
+		case DOCUMENT:
+			writeDocument(reader, gen);
+			break;
+		case ARRAY:
+			reader.readStartArray();
+			gen.writeStartArray();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				writeValue(reader, gen);
+			}
+			reader.readEndArray();
+			gen.writeEndArray();
+			break;
+		case STRING:
+			gen.writeString(reader.readString());
+			break;
+		case INT32:
+			gen.writeNumber(reader.readInt32());
+			break;
+		case INT64:
+			long longValue = reader.readInt64();
+			if (mode == JsonMode.PLAIN) {
+				gen.writeNumber(longValue);
+			} else {
+				gen.writeStartObject();
+				gen.writeStringField("$numberLong", Long.toString(longValue));
+				gen.writeEndObject();
+			}
+			break;
+		case DOUBLE:
+			gen.writeNumber(reader.readDouble());
+			break;
+		case BOOLEAN:
+			gen.writeBoolean(reader.readBoolean());
+			break;
+		case NULL:
+			reader.readNull();
+			gen.writeNull();
+			break;
+		case OBJECT_ID:
+			writeObjectId(reader.readObjectId().toHexString(), gen);
+			break;
+		case DATE_TIME:
+			long date = reader.readDateTime();
+			if (mode == JsonMode.PLAIN) {
+				gen.writeNumber(date);
+			} else {
+				gen.writeStartObject();
+				gen.writeNumberField("$date", date);
+				gen.writeEndObject();
+			}
+			break;
+		case BINARY:
+			BsonBinary binary = reader.readBinaryData();
+			if (mode == JsonMode.PLAIN) {
+				gen.writeBinary(binary.getData());
+			} else {
+				gen.writeStartObject();
+				gen.writeFieldName("$binary");
+				gen.writeBinary(binary.getData());
+				gen.writeStringField("$type",
+						String.format("%02X", binary.getType()));
+				gen.writeEndObject();
+			}
+			break;
+		case SYMBOL:
+			writeString("$symbol", reader.readSymbol(), gen);
+			break;
+		case JAVASCRIPT:
+			writeString("$code", reader.readJavaScript(), gen);
+			break;
+		case JAVASCRIPT_WITH_SCOPE:
+			gen.writeStartObject();
+			gen.writeStringField("$code", reader.readJavaScriptWithScope());
+			gen.writeFieldName("$scope");
+			writeDocument(reader, gen);
+			gen.writeEndObject();
+			break;
+		case REGULAR_EXPRESSION:
+			BsonRegularExpression regex = reader.readRegularExpression();
+			gen.writeStartObject();
+			gen.writeStringField("$regex", regex.getPattern());
+			gen.writeStringField("$options", regex.getOptions());
+			gen.writeEndObject();
+			break;
+		case TIMESTAMP:
+			BsonTimestamp timestamp = reader.readTimestamp();
+			gen.writeStartObject();
+			gen.writeFieldName("$timestamp");
+			gen.writeStartObject();
+			gen.writeNumberField("t", timestamp.getTime());
+			gen.writeNumberField("i", timestamp.getInc());
+			gen.writeEndObject();
+			gen.writeEndObject();
+			break;
+		case DB_POINTER:
+			BsonDbPointer pointer = reader.readDBPointer();
+			gen.writeStartObject();
+			gen.writeStringField("$ref", pointer.getNamespace());
+			gen.writeFieldName("$id");
+			writeObjectId(pointer.getId().toHexString(), gen);
+			gen.writeEndObject();
+			break;
+		case UNDEFINED:
+			reader.readUndefined();
+			gen.writeStartObject();
+			gen.writeBooleanField("$undefined", true);
+			gen.writeEndObject();
+			break;
+		case MIN_KEY:
+			reader.readMinKey();
+			gen.writeStartObject();
+			gen.writeNumberField("$minKey", 1);
+			gen.writeEndObject();
+			break;
+		case MAX_KEY:
+			reader.readMaxKey();
+			gen.writeStartObject();
+			gen.writeNumberField("$maxKey", 1);
+			gen.writeEndObject();
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported BSON type "
+					+ reader.getCurrentBsonType());
+		}
+	}
+
+	private void writeObjectId(String hex, JsonGenerator gen)
+			throws IOException {
+		writeString("$oid", hex, gen);
+	}
+
+	/**
+	 * Write the value as a plain string in PLAIN mode, else as a single field
+	 * object.
+	 */
+	private void writeString(String field, String value, JsonGenerator gen)
+			throws IOException {
+		if (mode == JsonMode.PLAIN) {
+			gen.writeString(value);
+		} else {
+			gen.writeStartObject();
+			gen.writeStringField(field, value);
+			gen.writeEndObject();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import com.couchbase.client.core.message.kv.MutationToken;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.java.document.AbstractDocument;
+
+/**
+ * Document stored as is with the given flags, like a binary column or a
+ * compressed JSON document.
+ *
+ * @author ldoguin
+ */
+public class ByteBufBinaryDocument extends AbstractDocument<ByteBuf> {
+
+	private final int flags;
+
+	public static ByteBufBinaryDocument create(String id, ByteBuf content,
+			int flags) {
+		return new ByteBufBinaryDocument(id, 0, content, 0, null, flags);
+	}
+
+	public static ByteBufBinaryDocument create(String id, int expiry,
+			ByteBuf content, long cas, MutationToken mutationToken, int flags) {
+		return new ByteBufBinaryDocument(id, expiry, content, cas,
+				mutationToken, flags);
+	}
+
+	private ByteBufBinaryDocument(String id, int expiry, ByteBuf content,
+			long cas, MutationToken mutationToken, int flags) {
+		super(id, expiry, content, cas, mutationToken);
+		this.flags = flags;
+	}
+
+	public int flags() {
+		return flags;
+	}
+}
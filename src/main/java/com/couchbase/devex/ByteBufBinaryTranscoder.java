@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import com.couchbase.client.core.lang.Tuple;
+import com.couchbase.client.core.lang.Tuple2;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.MutationToken;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.java.transcoder.AbstractTranscoder;
+import com.couchbase.client.java.transcoder.TranscoderUtils;
+
+/**
+ * Transcoder of {@link ByteBufBinaryDocument}, stored with the flags of the
+ * document. Like {@link ByteBufJsonTranscoder}, each encoding returns a new
+ * unpooled wrapper of the content so that it can be sent again on retry.
+ *
+ * @author ldoguin
+ */
+public class ByteBufBinaryTranscoder extends
+		AbstractTranscoder<ByteBufBinaryDocument, ByteBuf> {
+
+	@Override
+	protected Tuple2<ByteBuf, Integer> doEncode(ByteBufBinaryDocument document)
+			throws Exception {
+		return Tuple.create(Unpooled.wrappedBuffer(document.content()
+				.nioBuffer()), document.flags());
+	}
+
+	@Override
+	protected ByteBufBinaryDocument doDecode(String id, ByteBuf content,
+			long cas, int expiry, int flags, ResponseStatus status)
+			throws Exception {
+		// the content is released once decoded
+		return ByteBufBinaryDocument.create(id, expiry,
+				Unpooled.copiedBuffer(content), cas, null, flags);
+	}
+
+	@Override
+	public ByteBufBinaryDocument newDocument(String id, int expiry,
+			ByteBuf content, long cas) {
+		return ByteBufBinaryDocument.create(id, expiry, content, cas, null,
+				TranscoderUtils.BINARY_COMPAT_FLAGS);
+	}
+
+	@Override
+	public ByteBufBinaryDocument newDocument(String id, int expiry,
+			ByteBuf content, long cas, MutationToken mutationToken) {
+		return ByteBufBinaryDocument.create(id, expiry, content, cas,
+				mutationToken, TranscoderUtils.BINARY_COMPAT_FLAGS);
+	}
+
+	@Override
+	public Class<ByteBufBinaryDocument> documentType() {
+		return ByteBufBinaryDocument.class;
+	}
+}
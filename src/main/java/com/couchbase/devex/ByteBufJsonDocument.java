@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import com.couchbase.client.core.message.kv.MutationToken;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.java.document.AbstractDocument;
+
+/**
+ * JSON document whose content is already encoded as UTF-8 bytes. Importers
+ * writing JSON with a generator use it to skip the intermediate String of a
+ * {@link com.couchbase.client.java.document.RawJsonDocument}. It is written
+ * by the {@link ByteBufJsonTranscoder} registered on the bucket.
+ *
+ * @author ldoguin
+ */
+public class ByteBufJsonDocument extends AbstractDocument<ByteBuf> {
+
+	public static ByteBufJsonDocument create(String id, ByteBuf content) {
+		return new ByteBufJsonDocument(id, 0, content, 0, null);
+	}
+
+	public static ByteBufJsonDocument create(String id, int expiry,
+			ByteBuf content, long cas, MutationToken mutationToken) {
+		return new ByteBufJsonDocument(id, expiry, content, cas, mutationToken);
+	}
+
+	private ByteBufJsonDocument(String id, int expiry, ByteBuf content,
+			long cas, MutationToken mutationToken) {
+		super(id, expiry, content, cas, mutationToken);
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import com.couchbase.client.core.lang.Tuple;
+import com.couchbase.client.core.lang.Tuple2;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.MutationToken;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.java.error.TranscodingException;
+import com.couchbase.client.java.transcoder.AbstractTranscoder;
+import com.couchbase.client.java.transcoder.TranscoderUtils;
+
+/**
+ * Transcoder of {@link ByteBufJsonDocument}, flagged as JSON on the server.
+ *
+ * The SDK releases the buffer it is given once the request is written, and
+ * an upsert can be retried. Each encoding therefore returns a new unpooled
+ * wrapper sharing the memory of the document content, which stays readable
+ * for the next attempt and is reclaimed by the garbage collector.
+ *
+ * @author ldoguin
+ */
+public class ByteBufJsonTranscoder extends
+		AbstractTranscoder<ByteBufJsonDocument, ByteBuf> {
+
+	@Override
+	protected Tuple2<ByteBuf, Integer> doEncode(ByteBufJsonDocument document)
+			throws Exception {
+		return Tuple.create(Unpooled.wrappedBuffer(document.content()
+				.nioBuffer()), TranscoderUtils.JSON_COMPAT_FLAGS);
+	}
+
+	@Override
+	protected ByteBufJsonDocument doDecode(String id, ByteBuf content,
+			long cas, int expiry, int flags, ResponseStatus status)
+			throws Exception {
+		if (!TranscoderUtils.hasJsonFlags(flags)) {
+			throw new TranscodingException("Flags (0x"
+					+ Integer.toHexString(flags)
+					+ ") indicate non-JSON document for id " + id
+					+ ", could not decode.");
+		}
+		// the content is released once decoded
+		return newDocument(id, expiry, Unpooled.copiedBuffer(content), cas);
+	}
+
+	@Override
+	public ByteBufJsonDocument newDocument(String id, int expiry,
+			ByteBuf content, long cas) {
+		return ByteBufJsonDocument.create(id, expiry, content, cas, null);
+	}
+
+	@Override
+	public ByteBufJsonDocument newDocument(String id, int expiry,
+			ByteBuf content, long cas, MutationToken mutationToken) {
+		return ByteBufJsonDocument.create(id, expiry, content, cas,
+				mutationToken);
+	}
+
+	@Override
+	public Class<ByteBufJsonDocument> documentType() {
+		return ByteBufJsonDocument.class;
+	}
+}
@@ -18,26 +18,32 @@ package com.couchbase.devex;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import rx.Observable;
+import rx.schedulers.Schedulers;
 
-import com.couchbase.client.deps.com.fasterxml.jackson.databind.ObjectMapper;
-import com.couchbase.client.deps.com.fasterxml.jackson.databind.node.ObjectNode;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.io.SerializedString;
 import com.couchbase.client.java.document.Document;
-import com.couchbase.client.java.document.RawJsonDocument;
 import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvParser;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
@@ -53,64 +59,99 @@ import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 @ConditionalOnProperty(name = { "choosenImporter" }, havingValue = "CSV")
 public class CSVConfig implements ImporterConfig {
 
+	private static final Log log = LogFactory.getLog(CSVConfig.class);
+
+	/**
+	 * Checkpoint stream of the file, or prefix of the stream of each range
+	 * in parallel mode. Positions are numbers of records.
+	 */
+	public static final String CHECKPOINT_STREAM = "csv";
+
+	public static final String CHECKPOINT_RANGE_STREAM = CHECKPOINT_STREAM
+			+ ":%d-%d";
+
+	/** Smallest range worth parsing on its own worker. */
+	private static final long MIN_SPLIT_SIZE = 1024 * 1024;
+
 	public enum RowType {
 		STRING, LONG, DOUBLE, BOOLEAN, DATE;
 
-		public void addField(ObjectNode node, String name, String value,
-				SimpleDateFormat sdf) {
+		/**
+		 * Write the typed value of the given cell. Empty cells are written as
+		 * the default value of the type.
+		 */
+		public void write(JsonGenerator gen, String value, DateConverter dates)
+				throws IOException {
+			boolean empty = value == null || value.isEmpty();
 			switch (this) {
 			case STRING:
-				if (value == null || "".equals(value)) {
-					node.put(name, "");
-				} else {
-					node.put(name, value);
-				}
+				gen.writeString(empty ? "" : value);
 				break;
 
 			case LONG:
-				if (value == null || "".equals(value)) {
-					node.put(name, 0);
+				if (empty) {
+					gen.writeNumber(0);
 				} else {
-					long l = Long.valueOf(value.replaceAll("\\u00A0", ""));
-					node.put(name, l);
+					gen.writeNumber(Long.parseLong(removeNonBreakingSpaces(value)));
 				}
 				break;
 
 			case DOUBLE:
-				if (value == null || "".equals(value)) {
-					node.put(name, 0);
+				if (empty) {
+					gen.writeNumber(0);
 				} else {
-					value = value.replaceAll("\\u00A0", "");
-					double d = Double.valueOf(value);
-					node.put(name, d);
+					gen.writeNumber(Double
+							.parseDouble(removeNonBreakingSpaces(value)));
 				}
 				break;
 
 			case BOOLEAN:
-				if (value == null || "".equals(value)) {
-					node.put(name, false);
-				} else {
-					boolean b = Boolean.valueOf(value);
-					node.put(name, b);
-				}
+				gen.writeBoolean(!empty && Boolean.parseBoolean(value));
 				break;
 
 			case DATE:
-				if (value == null || "".equals(value)) {
-					node.put(name, 0);
-				} else {
-					Calendar c = Calendar.getInstance();
-					try {
-						c.setTime(sdf.parse(value));
-					} catch (ParseException e) {
-						throw new RuntimeException(e);
-					}
-					long dl = c.getTimeInMillis();
-					node.put(name, dl);
-				}
+				gen.writeNumber(empty ? 0 : dates.toEpochMillis(value));
 				break;
 			}
+		}
+
+		/**
+		 * Text of the typed value of the given cell, as used in document keys.
+		 */
+		public String asText(String value, DateConverter dates) {
+			boolean empty = value == null || value.isEmpty();
+			switch (this) {
+			case LONG:
+				return empty ? "0" : Long.toString(Long
+						.parseLong(removeNonBreakingSpaces(value)));
+			case DOUBLE:
+				return empty ? "0" : Double.toString(Double
+						.parseDouble(removeNonBreakingSpaces(value)));
+			case BOOLEAN:
+				return Boolean.toString(!empty && Boolean.parseBoolean(value));
+			case DATE:
+				return empty ? "0" : Long.toString(dates.toEpochMillis(value));
+			default:
+				return empty ? "" : value;
+			}
+		}
 
+		/**
+		 * Remove the non breaking spaces used as thousands separator by some
+		 * locales, without going through a regular expression.
+		 */
+		static String removeNonBreakingSpaces(String value) {
+			if (value.indexOf('\u00A0') < 0) {
+				return value;
+			}
+			StringBuilder sb = new StringBuilder(value.length());
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c != '\u00A0') {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
 		}
 
 		@Override
@@ -141,9 +182,18 @@ public class CSVConfig implements ImporterConfig {
 
 	private String keyPrefix = "";
 
-	private SimpleDateFormat sdf;
+	private int parallelism = 1;
 
-	private ObjectMapper objectMapper = new ObjectMapper();
+	@Autowired
+	private Checkpoints checkpoints;
+
+	private volatile DateConverter dateConverter;
+
+	private RowType[] rowTypes;
+
+	private SerializedString[] fieldNames;
+
+	private JsonDocumentWriter documentWriter;
 
 	public List<String> getColumName() {
 		return columName;
@@ -209,12 +259,20 @@ public class CSVConfig implements ImporterConfig {
 		this.keyPrefix = keyPrefix;
 	}
 
-	public SimpleDateFormat getSimpleDateFormat() {
-		if (sdf == null) {
-			sdf = new SimpleDateFormat(getDateFormat(),
-					Locale.forLanguageTag(languageTag));
-		}
-		return sdf;
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Date converter of the configured format, null until
+	 * {@link #resolveColumns()} is called.
+	 */
+	public DateConverter getDateConverter() {
+		return dateConverter;
 	}
 
 	public int getTotalColumn() {
@@ -240,42 +298,103 @@ public class CSVConfig implements ImporterConfig {
 		this.keyColumIndex = keyColumIndex;
 	}
 
-	public Observable<Document> createNode(String[] line) {
-		ObjectNode node = objectMapper.createObjectNode();
+	/**
+	 * Resolve the type and the serialized name of each column, and the date
+	 * converter, once before the first line is converted. Parsing threads then
+	 * share them without locking.
+	 */
+	void resolveColumns() {
+		dateConverter = new DateConverter(getDateFormat(),
+				Locale.forLanguageTag(languageTag));
+		rowTypes = new RowType[getTotalColumn()];
+		fieldNames = new SerializedString[getTotalColumn()];
 		for (int i = 0; i < getTotalColumn(); i++) {
-			String columnType = getColumType().get(i);
-			RowType.valueOf(columnType).addField(node, columName.get(i),
-					line[i], getSimpleDateFormat());
+			rowTypes[i] = RowType.valueOf(getColumType().get(i));
+			fieldNames[i] = new SerializedString(columName.get(i));
+		}
+		documentWriter = new JsonDocumentWriter();
+	}
+
+	/**
+	 * Write the given line straight to the bytes of a JSON document.
+	 */
+	public Document createDocument(String[] line) {
+		return createDocument(line, documentWriter);
+	}
+
+	/**
+	 * Write the given line with the given writer, each parsing thread using
+	 * its own.
+	 */
+	public Document createDocument(String[] line,
+			JsonDocumentWriter documentWriter) {
+		DateConverter dates = dateConverter;
+		try {
+			JsonGenerator gen = documentWriter.start();
+			gen.writeStartObject();
+			for (int i = 0; i < rowTypes.length; i++) {
+				gen.writeFieldName(fieldNames[i]);
+				rowTypes[i].write(gen, line[i], dates);
+			}
+			gen.writeEndObject();
+			String key = getKeyPrefix()
+					+ rowTypes[keyColumIndex].asText(line[keyColumIndex],
+							dates);
+			return documentWriter.finish(key);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		String kc = getKeyColum();
-		String key = getKeyPrefix() + node.get(kc).asText();
-		RawJsonDocument rjd = RawJsonDocument.create(key, node.toString());
-		return Observable.just(rjd);
+	}
+
+	private ObjectReader csvReader() {
+		CsvMapper mapper = new CsvMapper();
+		mapper.enable(CsvParser.Feature.WRAP_AS_ARRAY);
+		CsvSchema csvSchema = CsvSchema.emptySchema()
+				.withColumnSeparator(getColumnSeparator())
+				.withQuoteChar(getQuoteChar());
+		return mapper.reader(String[].class).with(csvSchema);
 	}
 
 	@Override
 	public Observable<Document> startImport() {
+		if (getParallelism() > 1) {
+			return startParallelImport();
+		}
 		FileInputStream csvFile;
 		try {
 			csvFile = new FileInputStream(getCsvFilePath());
-			CsvMapper mapper = new CsvMapper();
-			mapper.enable(CsvParser.Feature.WRAP_AS_ARRAY);
-			CsvSchema csvSchema = CsvSchema.emptySchema()
-					.withColumnSeparator(getColumnSeparator())
-					.withQuoteChar(getQuoteChar());
-			ObjectReader reader = mapper.reader(String[].class);
-			MappingIterator<String[]> it = reader.with(csvSchema).readValues(
-					csvFile);
+			MappingIterator<String[]> it = csvReader().readValues(csvFile);
 			if (!getSkipFirstLineForNames()) {
 				String[] firstline = it.next();
 				updateColumnNames(firstline);
 			}
+			resolveColumns();
+			CheckpointTracker tracker = checkpoints.tracker(CHECKPOINT_STREAM,
+					0);
+			long skipped = Long.parseLong(tracker.getResumePosition());
+			if (skipped > 0) {
+				// restart at the byte offset of the first record to import
+				it.close();
+				csvFile = new FileInputStream(getCsvFilePath());
+				FileChannel channel = csvFile.getChannel();
+				CSVSplitter splitter = new CSVSplitter(channel, getQuoteChar());
+				long start = getSkipFirstLineForNames() ? 0 : splitter
+						.nextRecord(0);
+				channel.position(splitter.skipRecords(start, channel.size(),
+						skipped));
+				it = csvReader().readValues(csvFile);
+				log.info(String.format("Skipping the %d records imported before.",
+						skipped));
+			}
+			MappingIterator<String[]> lines = it;
+			long[] records = { skipped };
 			return Observable.from(new Iterable<String[]>() {
 				@Override
 				public Iterator<String[]> iterator() {
-					return it;
+					return lines;
 				}
-			}).flatMap(line -> createNode(line));
+			}).map(line -> tracker.track(createDocument(line), ++records[0]))
+					.subscribeOn(Schedulers.io());
 		} catch (FileNotFoundException e) {
 			return Observable.error(e);
 		} catch (IOException e) {
@@ -283,6 +402,97 @@ public class CSVConfig implements ImporterConfig {
 		}
 	}
 
+	/**
+	 * Memory map the file and parse ranges of it aligned on record
+	 * boundaries on parallel workers. Documents are emitted in no particular
+	 * order. When resuming, the ranges of the previous run are used and each
+	 * one restarts after the records it already imported.
+	 */
+	private Observable<Document> startParallelImport() {
+		try (FileChannel channel = FileChannel.open(Paths.get(getCsvFilePath()),
+				StandardOpenOption.READ)) {
+			CSVSplitter splitter = new CSVSplitter(channel, getQuoteChar());
+			long start = 0;
+			if (!getSkipFirstLineForNames()) {
+				start = splitter.nextRecord(0);
+				try (MappingIterator<String[]> it = csvReader().readValues(
+						new ByteBufferBackedInputStream(splitter.map(0, start)))) {
+					updateColumnNames(it.next());
+				}
+			}
+			resolveColumns();
+			List<long[]> ranges = getResumedRanges();
+			if (ranges.isEmpty()) {
+				long size = channel.size() - start;
+				int splits = (int) Math.max(
+						Math.min(getParallelism(), size / MIN_SPLIT_SIZE),
+						(size + CSVSplitter.MAX_SPLIT_SIZE - 1)
+								/ CSVSplitter.MAX_SPLIT_SIZE);
+				long[] boundaries = splitter.split(start, splits);
+				for (int i = 0; i < boundaries.length - 1; i++) {
+					ranges.add(new long[] { boundaries[i], boundaries[i + 1] });
+				}
+			}
+			log.info(String.format("Parsing %s in %d ranges.",
+					getCsvFilePath(), ranges.size()));
+			List<Observable<Document>> observables = new ArrayList<Observable<Document>>();
+			for (long[] range : ranges) {
+				CheckpointTracker tracker = checkpoints.tracker(String.format(
+						CHECKPOINT_RANGE_STREAM, range[0], range[1]), 0);
+				long skipped = Long.parseLong(tracker.getResumePosition());
+				long offset = splitter.skipRecords(range[0], range[1], skipped);
+				// the mapping stays valid once the channel is closed
+				observables.add(importRange(splitter.map(offset, range[1]),
+						tracker, skipped));
+			}
+			return Observable.merge(observables);
+		} catch (IOException e) {
+			return Observable.error(e);
+		}
+	}
+
+	/**
+	 * Byte ranges of the previous run, sorted by offset.
+	 */
+	private List<long[]> getResumedRanges() {
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (String name : checkpoints
+				.getResumedStreams(CHECKPOINT_STREAM + ":")) {
+			String[] bounds = name.substring(CHECKPOINT_STREAM.length() + 1)
+					.split("-");
+			ranges.add(new long[] { Long.parseLong(bounds[0]),
+					Long.parseLong(bounds[1]) });
+		}
+		ranges.sort((r1, r2) -> Long.compare(r1[0], r2[0]));
+		return ranges;
+	}
+
+	private Observable<Document> importRange(ByteBuffer range,
+			CheckpointTracker tracker, long skipped) {
+		return Observable.using(
+				() -> {
+					try {
+						return csvReader().<String[]> readValues(
+								new ByteBufferBackedInputStream(range));
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				},
+				it -> {
+					JsonDocumentWriter writer = new JsonDocumentWriter();
+					long[] records = { skipped };
+					return Observable.from(() -> it).map(
+							line -> tracker.track(
+									createDocument(line, writer), ++records[0]));
+				}, it -> {
+					try {
+						it.close();
+					} catch (IOException e) {
+						log.warn("Could not close CSV parser", e);
+					}
+				}).subscribeOn(Schedulers.computation());
+	}
+
 	private void updateColumnNames(String[] line) {
 		for (int i = 0; i < getTotalColumn(); i++) {
 			columName.add(line[i]);
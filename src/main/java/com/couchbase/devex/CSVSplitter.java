@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Split a CSV file in byte ranges starting on record boundaries, so each
+ * range can be parsed on its own. A boundary is the byte following a line
+ * feed which is not inside a quoted value. When quotes are used, the file is
+ * scanned once through memory mapped windows to follow the quoting state;
+ * this is a byte comparison loop, much cheaper than parsing. Without quotes,
+ * the scan jumps straight to the next line feed after each target offset.
+ * Quote and line feed chars are ASCII, so they never appear inside a
+ * multi-byte UTF-8 char.
+ *
+ * @author ldoguin
+ */
+public class CSVSplitter {
+
+	/** Size of the windows mapped to scan the file. */
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+	/** Ranges are mapped as one buffer, keep them well under 2GB. */
+	public static final long MAX_SPLIT_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+
+	private final byte quote;
+
+	private final boolean quoted;
+
+	public CSVSplitter(FileChannel channel, char quoteChar) {
+		this.channel = channel;
+		this.quote = (byte) quoteChar;
+		this.quoted = quoteChar != '\0';
+	}
+
+	/**
+	 * Offset of the record following the one starting at the given offset,
+	 * or the size of the file if it is the last one.
+	 */
+	public long nextRecord(long start) throws IOException {
+		return scan(start, start, 1, 1).get(0);
+	}
+
+	/**
+	 * Boundaries of about the given number of ranges between start and the
+	 * end of the file. The first element is start and the last one the size
+	 * of the file. There can be less ranges than asked if records are larger
+	 * than the ranges.
+	 */
+	public long[] split(long start, int splits) throws IOException {
+		long size = channel.size();
+		long step = Math.max(1, (size - start) / Math.max(1, splits));
+		List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(start);
+		if (splits <= 1 || start >= size) {
+			boundaries.add(size);
+		} else if (quoted) {
+			boundaries.addAll(scan(start, start + step, step, splits - 1));
+			if (boundaries.get(boundaries.size() - 1) < size) {
+				boundaries.add(size);
+			}
+		} else {
+			long boundary = start;
+			while (boundary < size) {
+				boundary = scan(boundary + step - 1, boundary + step, 1, 1)
+						.get(0);
+				boundaries.add(boundary);
+			}
+		}
+		long[] result = new long[boundaries.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = boundaries.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Offset of the record following the given number of records from start,
+	 * or end if the range has less records.
+	 */
+	public long skipRecords(long start, long end, long records)
+			throws IOException {
+		long position = start;
+		long skipped = 0;
+		boolean inQuotes = false;
+		while (position < end && skipped < records) {
+			MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position,
+					Math.min(WINDOW_SIZE, end - position));
+			while (window.hasRemaining() && skipped < records) {
+				byte b = window.get();
+				if (quoted && b == quote) {
+					inQuotes = !inQuotes;
+				} else if (b == '\n' && !inQuotes) {
+					skipped++;
+				}
+			}
+			position += window.position();
+		}
+		return skipped < records ? end : position;
+	}
+
+	/**
+	 * Map the given range of the file.
+	 */
+	public MappedByteBuffer map(long start, long end) throws IOException {
+		return channel.map(MapMode.READ_ONLY, start, end - start);
+	}
+
+	/**
+	 * Scan the file from position, which must not be inside quotes, and
+	 * return the first boundary at or after each target, targets being step
+	 * bytes after the previous boundary, up to max boundaries. The size of
+	 * the file is added when the end of the file is reached.
+	 */
+	private List<Long> scan(long position, long target, long step, int max)
+			throws IOException {
+		List<Long> boundaries = new ArrayList<Long>();
+		long size = channel.size();
+		boolean inQuotes = false;
+		while (position < size) {
+			MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position,
+					Math.min(WINDOW_SIZE, size - position));
+			while (window.hasRemaining()) {
+				byte b = window.get();
+				if (quoted && b == quote) {
+					// an escaped quote toggles the state twice
+					inQuotes = !inQuotes;
+				} else if (b == '\n' && !inQuotes) {
+					long boundary = position + window.position();
+					if (boundary >= target && boundary < size) {
+						boundaries.add(boundary);
+						if (boundaries.size() >= max) {
+							return boundaries;
+						}
+						target = boundary + step;
+					}
+				}
+			}
+			position += window.position();
+		}
+		boundaries.add(size);
+		return boundaries;
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.couchbase.client.core.message.kv.MutationToken;
+import com.couchbase.client.java.document.Document;
+
+/**
+ * Track the position of one stream of documents read in order, like a CSV
+ * range, a table or a key range. Each document is wrapped with its position
+ * in the source when it is emitted, and acknowledged once its upsert
+ * succeeded. The checkpoint position is the one of the last document for
+ * which every preceding document was acknowledged, so restarting after it
+ * never skips a document. A document which definitely failed holds the
+ * position before it for the rest of the run, so that a resumed import
+ * retries it.
+ *
+ * @author ldoguin
+ */
+public class CheckpointTracker {
+
+	private static final Log log = LogFactory.getLog(CheckpointTracker.class);
+
+	private final String name;
+
+	private final String resumePosition;
+
+	private final boolean enabled;
+
+	/** Positions of the documents read, without their content. */
+	private final Queue<Entry> pending = new ArrayDeque<Entry>();
+
+	private Object position;
+
+	private boolean held = false;
+
+	public CheckpointTracker(String name, String resumePosition,
+			boolean enabled) {
+		this.name = name;
+		this.resumePosition = resumePosition;
+		this.enabled = enabled;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Position of the last acknowledged document of the previous run, or the
+	 * initial position of the stream. Null if the stream must be read from
+	 * its start.
+	 */
+	public String getResumePosition() {
+		return resumePosition;
+	}
+
+	/**
+	 * Position up to which every document was acknowledged, or null if
+	 * nothing was acknowledged yet.
+	 */
+	public synchronized String getPosition() {
+		if (position == null) {
+			return resumePosition;
+		}
+		return position.toString();
+	}
+
+	/**
+	 * Wrap the given document with its position. Must be called in the order
+	 * of the stream. A null position ties the document to the next one, like
+	 * the binary documents of a row, so the checkpoint only moves once both
+	 * are acknowledged. The document is returned as is if checkpoints are
+	 * disabled.
+	 */
+	public Document track(Document document, Object position) {
+		if (!enabled) {
+			return document;
+		}
+		Entry entry = new Entry(position);
+		synchronized (this) {
+			if (!held) {
+				pending.add(entry);
+			}
+		}
+		return new TrackedDocument(this, document, entry);
+	}
+
+	synchronized void acknowledge(Entry entry, boolean imported) {
+		if (imported) {
+			entry.acknowledged = true;
+		} else {
+			entry.failed = true;
+		}
+		while (!held && !pending.isEmpty()) {
+			Entry first = pending.peek();
+			if (first.failed) {
+				held = true;
+				pending.clear();
+				log.warn(String.format(
+						"Checkpoint of %s held at %s, before a document which could not be imported.",
+						name, getPosition()));
+			} else if (first.acknowledged) {
+				pending.poll();
+				if (first.position != null) {
+					position = first.position;
+				}
+			} else {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Document to upsert, unwrapping it if it is tracked.
+	 */
+	public static Document unwrap(Document document) {
+		if (document instanceof TrackedDocument) {
+			Document tracked = ((TrackedDocument) document).document;
+			if (tracked == null) {
+				throw new IllegalStateException(String.format(
+						"Document %s was already acknowledged.", document.id()));
+			}
+			return tracked;
+		}
+		return document;
+	}
+
+	/**
+	 * Acknowledge the given document if it is tracked, once it was imported
+	 * or skipped.
+	 */
+	public static void acknowledge(Document document) {
+		if (document instanceof TrackedDocument) {
+			((TrackedDocument) document).release(true);
+		}
+	}
+
+	/**
+	 * Hold the checkpoint of the stream of the given document, if it is
+	 * tracked, before it as it could not be imported.
+	 */
+	public static void fail(Document document) {
+		if (document instanceof TrackedDocument) {
+			((TrackedDocument) document).release(false);
+		}
+	}
+
+	/**
+	 * The position of a document in the stream, and whether it was
+	 * acknowledged or failed.
+	 */
+	static class Entry {
+
+		private final Object position;
+
+		private boolean acknowledged = false;
+
+		private boolean failed = false;
+
+		Entry(Object position) {
+			this.position = position;
+		}
+	}
+
+	/**
+	 * A document and the entry of its position in the stream. The document
+	 * is released once acknowledged or failed, so the content of documents
+	 * waiting for the ones before them is not kept.
+	 */
+	static class TrackedDocument implements Document<Object> {
+
+		private final CheckpointTracker tracker;
+
+		private final String id;
+
+		private final Entry entry;
+
+		private volatile Document document;
+
+		TrackedDocument(CheckpointTracker tracker, Document document,
+				Entry entry) {
+			this.tracker = tracker;
+			this.id = document.id();
+			this.document = document;
+			this.entry = entry;
+		}
+
+		void release(boolean imported) {
+			document = null;
+			tracker.acknowledge(entry, imported);
+		}
+
+		@Override
+		public String id() {
+			return id;
+		}
+
+		@Override
+		public Object content() {
+			Document current = document;
+			return current == null ? null : current.content();
+		}
+
+		@Override
+		public long cas() {
+			Document current = document;
+			return current == null ? 0 : current.cas();
+		}
+
+		@Override
+		public int expiry() {
+			Document current = document;
+			return current == null ? 0 : current.expiry();
+		}
+
+		@Override
+		public MutationToken mutationToken() {
+			Document current = document;
+			return current == null ? null : current.mutationToken();
+		}
+	}
+}
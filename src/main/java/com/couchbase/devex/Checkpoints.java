@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.core.type.TypeReference;
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Checkpoints of the streams read by the selected importer. If
+ * checkpointInterval is greater than 0, every checkpointInterval
+ * milliseconds the position of each {@link CheckpointTracker} is written to
+ * checkpointFilename, as a JSON object of stream names to positions. The file is written to a temporary file first
+ * and then renamed, so a crash never leaves a truncated checkpoint. When the
+ * importer is started with --resume, the previous positions are loaded and
+ * each stream restarts after its last acknowledged document.
+ *
+ * @author ldoguin
+ */
+@Configuration
+public class Checkpoints {
+
+	private static final Log log = LogFactory.getLog(Checkpoints.class);
+
+	@Value("${checkpointFilename:checkpoint.json}")
+	private String checkpointFilename;
+
+	@Value("${checkpointInterval:0}")
+	private long checkpointInterval;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final Map<String, CheckpointTracker> trackers = new LinkedHashMap<String, CheckpointTracker>();
+
+	private Map<String, String> resumePositions = Collections.emptyMap();
+
+	private ScheduledExecutorService scheduler;
+
+	private boolean started = false;
+
+	/**
+	 * Checkpoints are written if checkpointInterval is greater than 0, which
+	 * it is not by default. Importers sort their streams only when they are
+	 * enabled, which costs an ordered index scan or a server side sort.
+	 */
+	public boolean isEnabled() {
+		return checkpointInterval > 0;
+	}
+
+	/**
+	 * Load the positions saved by the previous run.
+	 */
+	public synchronized void resume() throws IOException {
+		File file = new File(checkpointFilename);
+		if (!file.exists()) {
+			log.warn(String.format(
+					"No checkpoint found in %s, importing everything.",
+					checkpointFilename));
+			return;
+		}
+		resumePositions = mapper.readValue(file,
+				new TypeReference<LinkedHashMap<String, String>>() {
+				});
+		log.info(String.format("Resuming %d streams from %s.",
+				resumePositions.size(), checkpointFilename));
+		if (!isEnabled()) {
+			log.warn("Checkpoints are disabled, set checkpointInterval to save the positions reached by this run.");
+		}
+	}
+
+	public synchronized boolean isResuming() {
+		return !resumePositions.isEmpty();
+	}
+
+	/**
+	 * Names of the streams of the previous run starting with the given
+	 * prefix.
+	 */
+	public synchronized List<String> getResumedStreams(String prefix) {
+		List<String> names = new ArrayList<String>();
+		for (String name : resumePositions.keySet()) {
+			if (name.startsWith(prefix)) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Tracker of the stream with the given name, starting at its saved
+	 * position when resuming.
+	 */
+	public CheckpointTracker tracker(String name) {
+		return tracker(name, null);
+	}
+
+	/**
+	 * Tracker of the stream with the given name, starting at its saved
+	 * position when resuming, or at the given initial position. The initial
+	 * position is saved even if nothing was acknowledged, for streams that
+	 * must be known on resume.
+	 */
+	public synchronized CheckpointTracker tracker(String name,
+			Object initialPosition) {
+		CheckpointTracker tracker = trackers.get(name);
+		if (tracker == null) {
+			String position = resumePositions.get(name);
+			if (position == null && initialPosition != null) {
+				position = initialPosition.toString();
+			}
+			tracker = new CheckpointTracker(name, position, isEnabled());
+			trackers.put(name, tracker);
+		}
+		return tracker;
+	}
+
+	/**
+	 * Start writing checkpoints periodically.
+	 */
+	public synchronized void start() {
+		if (!isEnabled() || started) {
+			return;
+		}
+		started = true;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "checkpoint");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				save();
+			} catch (IOException e) {
+				log.error("Could not write checkpoint " + checkpointFilename, e);
+			}
+		}, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Write the current position of every stream. Streams of the previous run
+	 * which were not read again keep their position. Nothing is written
+	 * before the import started, to keep the previous checkpoint if the
+	 * importer fails to start.
+	 */
+	public synchronized void save() throws IOException {
+		if (!started) {
+			return;
+		}
+		Map<String, String> positions = new LinkedHashMap<String, String>(
+				resumePositions);
+		for (CheckpointTracker tracker : trackers.values()) {
+			String position = tracker.getPosition();
+			if (position != null) {
+				positions.put(tracker.getName(), position);
+			}
+		}
+		Path target = Paths.get(checkpointFilename).toAbsolutePath();
+		Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+		mapper.writeValue(temporary.toFile(), positions);
+		Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Stop the periodic checkpoints and write the last one.
+	 */
+	@PreDestroy
+	public void stop() throws IOException {
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+		save();
+	}
+}
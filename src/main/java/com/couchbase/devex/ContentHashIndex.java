@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.java.document.Document;
+
+/**
+ * Hash of the content last written for each key, kept in the memory mapped
+ * file contentHashFilename so that it survives the import. When
+ * skipUnchanged is enabled, documents whose content hash matches the one
+ * recorded for their key are not upserted again. The hash of a document is
+ * only recorded once its upsert succeeded.
+ *
+ * The file is an open addressing hash table of contentHashCapacity entries
+ * of 16 bytes, a 64 bit hash of the key and a 64 bit hash of the content,
+ * split in segments of SEGMENT_ENTRIES entries each mapped and locked on its
+ * own. A key is looked for in at most MAX_PROBES slots after its home slot.
+ * When they are all taken by other keys, the home slot is overwritten: the
+ * index forgets a key rather than growing, and a forgotten key is simply
+ * upserted again.
+ *
+ * @author ldoguin
+ */
+@Configuration
+public class ContentHashIndex {
+
+	private static final Log log = LogFactory.getLog(ContentHashIndex.class);
+
+	private static final int ENTRY_SIZE = 16;
+
+	private static final int SEGMENT_ENTRIES = 1 << 20;
+
+	private static final int MAX_PROBES = 64;
+
+	private static final long KEY_SEED = 0x9747b28cL;
+
+	private static final long CONTENT_SEED = 0x5bd1e995L;
+
+	private static final long C1 = 0x87c37b91114253d5L;
+
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	@Value("${skipUnchanged:false}")
+	private boolean enabled;
+
+	@Value("${contentHashFilename:content-hashes.bin}")
+	private String contentHashFilename;
+
+	@Value("${contentHashCapacity:16777216}")
+	private long contentHashCapacity;
+
+	private MappedByteBuffer[] segments;
+
+	private int segmentMask;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@PostConstruct
+	public void open() throws IOException {
+		if (!enabled) {
+			return;
+		}
+		int segmentCount = 1;
+		while ((long) segmentCount * SEGMENT_ENTRIES < contentHashCapacity) {
+			segmentCount <<= 1;
+		}
+		segments = new MappedByteBuffer[segmentCount];
+		segmentMask = segmentCount - 1;
+		long segmentSize = (long) SEGMENT_ENTRIES * ENTRY_SIZE;
+		try (RandomAccessFile file = new RandomAccessFile(contentHashFilename, "rw");
+				FileChannel channel = file.getChannel()) {
+			if (file.length() != 0 && file.length() != segmentCount * segmentSize) {
+				log.warn(String.format(
+						"%s does not have %d entries, every document will be written again.",
+						contentHashFilename, segmentCount * SEGMENT_ENTRIES));
+				file.setLength(0);
+			}
+			// the mappings stay valid once the channel is closed
+			for (int i = 0; i < segmentCount; i++) {
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentSize, segmentSize);
+			}
+		}
+		log.info(String.format("Skipping unchanged documents, %d content hashes in %s.",
+				segmentCount * SEGMENT_ENTRIES, contentHashFilename));
+	}
+
+	/**
+	 * Write the modified pages to disk.
+	 */
+	@PreDestroy
+	public void close() {
+		if (segments == null) {
+			return;
+		}
+		for (MappedByteBuffer segment : segments) {
+			synchronized (segment) {
+				segment.force();
+			}
+		}
+	}
+
+	/**
+	 * True if the content of the given document is the one recorded for its
+	 * key.
+	 */
+	public boolean isUnchanged(Document document) {
+		long key = keyHash(document.id());
+		long content = contentHash(document);
+		MappedByteBuffer segment = segment(key);
+		synchronized (segment) {
+			int slot = find(segment, key);
+			return slot >= 0 && segment.getLong(slot * ENTRY_SIZE + 8) == content;
+		}
+	}
+
+	/**
+	 * Record the content of the given document, once it was written.
+	 */
+	public void update(Document document) {
+		long key = keyHash(document.id());
+		long content = contentHash(document);
+		MappedByteBuffer segment = segment(key);
+		synchronized (segment) {
+			int slot = find(segment, key);
+			if (slot < 0) {
+				slot = -slot - 1;
+			}
+			segment.putLong(slot * ENTRY_SIZE, key);
+			segment.putLong(slot * ENTRY_SIZE + 8, content);
+		}
+	}
+
+	private MappedByteBuffer segment(long key) {
+		// the low bits choose the slot, the high bits the segment
+		return segments[(int) (key >>> 40) & segmentMask];
+	}
+
+	/**
+	 * Slot of the given key, or -(slot + 1) where it should be inserted.
+	 */
+	private static int find(MappedByteBuffer segment, long key) {
+		int home = (int) key & (SEGMENT_ENTRIES - 1);
+		for (int i = 0; i < MAX_PROBES; i++) {
+			int slot = (home + i) & (SEGMENT_ENTRIES - 1);
+			long current = segment.getLong(slot * ENTRY_SIZE);
+			if (current == key) {
+				return slot;
+			}
+			if (current == 0) {
+				return -slot - 1;
+			}
+		}
+		return -home - 1;
+	}
+
+	static long keyHash(String id) {
+		long hash = hash(Unpooled.wrappedBuffer(id.getBytes(StandardCharsets.UTF_8)), KEY_SEED);
+		// 0 marks an empty slot
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Hash of the content of the document as it is sent, raw bytes or
+	 * String, or of its String value for other content types.
+	 */
+	static long contentHash(Document document) {
+		Object content = document.content();
+		if (content instanceof ByteBuf) {
+			return hash((ByteBuf) content, CONTENT_SEED);
+		}
+		return hash(Unpooled.wrappedBuffer(String.valueOf(content).getBytes(StandardCharsets.UTF_8)),
+				CONTENT_SEED);
+	}
+
+	/**
+	 * 64 bits of the MurmurHash3 x64 128 bit hash of the readable bytes of
+	 * the given buffer, which is left untouched. Blocks are read big endian,
+	 * so values differ from the reference implementation.
+	 */
+	static long hash(ByteBuf buffer, long seed) {
+		int offset = buffer.readerIndex();
+		int length = buffer.readableBytes();
+		long h1 = seed;
+		long h2 = seed;
+		int blocks = length >>> 4;
+		for (int i = 0; i < blocks; i++) {
+			long k1 = buffer.getLong(offset + i * 16);
+			long k2 = buffer.getLong(offset + i * 16 + 8);
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27) + h2;
+			h1 = h1 * 5 + 0x52dce729;
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31) + h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+		long k1 = 0;
+		long k2 = 0;
+		int tail = offset + blocks * 16;
+		for (int i = length & 15; i > 0; i--) {
+			long b = buffer.getByte(tail + i - 1) & 0xffL;
+			if (i > 8) {
+				k2 ^= b << ((i - 9) * 8);
+			} else {
+				k1 ^= b << ((i - 1) * 8);
+			}
+		}
+		h2 ^= mixK2(k2);
+		h1 ^= mixK1(k1);
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		return h1 + h2;
+	}
+
+	private static long mixK1(long k1) {
+		return Long.rotateLeft(k1 * C1, 31) * C2;
+	}
+
+	private static long mixK2(long k2) {
+		return Long.rotateLeft(k2 * C2, 33) * C1;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9e62b9c6ca6L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
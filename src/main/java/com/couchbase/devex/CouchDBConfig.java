@@ -15,28 +15,37 @@
  */
 package com.couchbase.devex;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
 import rx.Observable;
+import rx.schedulers.Schedulers;
 
-import com.couchbase.client.deps.com.fasterxml.jackson.databind.JsonNode;
 import com.couchbase.client.deps.com.fasterxml.jackson.databind.ObjectMapper;
 import com.couchbase.client.java.document.Document;
-import com.couchbase.client.java.document.RawJsonDocument;
 
 /**
- * Created by ldoguin on 17/08/15.
+ * This is a CouchDB importer configuration. To select it, set the
+ * 'choosenImporter' property to 'COUCHDB'. The response of downloadURL is
+ * streamed by a {@link CouchDBRowIterator}, documents are read as the upsert
+ * pipeline requests them. If parallelism is greater than 1, the key space is
+ * split in as many ranges, read concurrently.
+ * 
+ * @author ldoguin
  */
 
 @ConfigurationProperties("couchdb")
@@ -50,16 +59,140 @@ public class CouchDBConfig implements ImporterConfig {
 
 	public static final String OFFSET_PROPERTY = "offset";
 
+	public static final String ROWS_PROPERTY = "rows";
+
+	/** Prefix of the checkpoint stream of each key range. */
+	public static final String CHECKPOINT_STREAM = "couchdb:";
+
 	private String downloadURL = "http://127.0.0.1:5984/database_export/_all_docs?include_docs=true";
 
-	ObjectMapper om = new ObjectMapper();
+	private int parallelism = 1;
+
+	private int pageSize = 0;
+
+	private final ObjectMapper om = new ObjectMapper();
+
+	@Autowired
+	Checkpoints checkpoints;
+
+	public String getDownloadURL() {
+		return downloadURL;
+	}
+
+	public void setDownloadURL(String downloadURL) {
+		this.downloadURL = downloadURL;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
 
 	@Override
 	public Observable<Document> startImport() {
-		BufferedReader inp2 = null;
+		List<String> splitKeys = parallelism > 1 ? findSplitKeys()
+				: Collections.emptyList();
+		List<Observable<Document>> ranges = new ArrayList<Observable<Document>>();
+		for (int i = 0; i <= splitKeys.size(); i++) {
+			String startKey = i == 0 ? null : splitKeys.get(i - 1);
+			String endKey = i == splitKeys.size() ? null : splitKeys.get(i);
+			CheckpointTracker tracker = checkpoints.tracker(CHECKPOINT_STREAM
+					+ (startKey == null ? "" : startKey));
+			Observable<Document> range = Observable.using(
+					() -> new RangeIterator(startKey, endKey, tracker),
+					rows -> Observable.from(() -> rows),
+					RangeIterator::close);
+			ranges.add(range.subscribeOn(Schedulers.io()));
+		}
+		return Observable.merge(ranges);
+	}
+
+	/**
+	 * Split the key space in parallelism ranges of about the same number of
+	 * rows. The first key of each range but the first one is found with a
+	 * limit=1 query skipping the right number of rows.
+	 */
+	List<String> findSplitKeys() {
+		long totalRows;
+		try (CouchDBRowIterator rows = openRows(withParameters(downloadURL,
+				"limit=0"))) {
+			totalRows = rows.getTotalRows();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		List<String> splitKeys = new ArrayList<String>();
+		for (int i = 1; i < parallelism; i++) {
+			long skip = totalRows * i / parallelism;
+			try (CouchDBRowIterator rows = openRows(withParameters(
+					downloadURL, "limit=1", "skip=" + skip))) {
+				rows.hasNext();
+				String key = rows.getLastKey();
+				if (key != null
+						&& (splitKeys.isEmpty() || !key.equals(splitKeys
+								.get(splitKeys.size() - 1)))) {
+					splitKeys.add(key);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		log.info(String.format("Reading %d rows in %d ranges.", totalRows,
+				splitKeys.size() + 1));
+		return splitKeys;
+	}
+
+	String rangeURL(String startKey, boolean skipStartKey, String endKey) {
+		List<String> parameters = new ArrayList<String>();
+		if (startKey != null) {
+			parameters.add("startkey=" + encodeKey(startKey));
+			if (skipStartKey) {
+				parameters.add("skip=1");
+			}
+		}
+		if (endKey != null) {
+			parameters.add("endkey=" + encodeKey(endKey));
+			parameters.add("inclusive_end=false");
+		}
+		if (pageSize > 0) {
+			parameters.add("limit=" + pageSize);
+		}
+		return withParameters(downloadURL,
+				parameters.toArray(new String[parameters.size()]));
+	}
+
+	private String encodeKey(String key) {
 		try {
-			URL url = new URL(downloadURL);
-			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+			return URLEncoder.encode(om.writeValueAsString(key), "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String withParameters(String url, String... parameters) {
+		StringBuilder sb = new StringBuilder(url);
+		char separator = url.indexOf('?') < 0 ? '?' : '&';
+		for (String parameter : parameters) {
+			sb.append(separator).append(parameter);
+			separator = '&';
+		}
+		return sb.toString();
+	}
+
+	CouchDBRowIterator openRows(String url) {
+		try {
+			HttpURLConnection conn = (HttpURLConnection) new URL(url)
+					.openConnection();
 			conn.setRequestMethod("GET");
 			conn.setRequestProperty("Accept", "application/json");
 			// assume this is going to be a big file...
@@ -68,50 +201,68 @@ public class CouchDBConfig implements ImporterConfig {
 				throw new RuntimeException("Failed : HTTP error code : "
 						+ conn.getResponseCode());
 			}
-
-			inp2 = new BufferedReader(new InputStreamReader(
-					conn.getInputStream()));
-		} catch (Exception e) {
+			return new CouchDBRowIterator(conn.getInputStream());
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		Observable.from(inp2.lines()::iterator).flatMap(s -> {
-			JsonNode node = null;
-			if (s.endsWith("\"rows\":[")) {
-				// first line, find total rows, offset
-				s = s.concat("]}");
-				try {
-					node = om.readTree(s.toString());
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-				long totalRows = node.get(TOTAL_ROWS_PROPERTY).asLong();
-				long offset = node.get(OFFSET_PROPERTY).asLong();
-				log.info(String.format(
-						"Query starting at offset %d for a total of %d rows.",
-						offset, totalRows));
-				return Observable.empty();
-			} else if (s.length() == 2) {
-				// last line, do nothing
-				log.info("end of the feed.");
-				return Observable.empty();
+	}
+
+	/**
+	 * Iterate over the rows of a key range, between startKey included and
+	 * endKey excluded. If pageSize is set, the range is read with successive
+	 * limit=pageSize queries starting after the last key of the previous page,
+	 * which lets HttpURLConnection reuse keep-alive connections. Otherwise the
+	 * whole range is streamed by a single query. When resuming, the range
+	 * starts after the last key imported by the previous run.
+	 */
+	public class RangeIterator implements Iterator<Document> {
+
+		private final String endKey;
+
+		private final CheckpointTracker tracker;
+
+		private CouchDBRowIterator page;
+
+		public RangeIterator(String startKey, String endKey,
+				CheckpointTracker tracker) {
+			this.endKey = endKey;
+			this.tracker = tracker;
+			String resumeKey = tracker.getResumePosition();
+			if (resumeKey != null) {
+				this.page = openRows(rangeURL(resumeKey, true, endKey));
 			} else {
-				try {
-					if (s.endsWith(",")) {
-						node = om.readTree(s.substring(0, s.length() - 1)
-								.toString());
-					} else {
-						node = om.readTree(s.toString());
-					}
-					String key = node.get("key").asText();
-					String jsonDoc = node.get("doc").toString();
-					Document doc = RawJsonDocument.create(key, jsonDoc);
-					return Observable.just(doc);
-				} catch (IOException e) {
-					return Observable.error(e);
+				this.page = openRows(rangeURL(startKey, false, endKey));
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!page.hasNext()) {
+				if (pageSize <= 0 || page.getRowCount() < pageSize) {
+					return false;
 				}
+				String lastKey = page.getLastKey();
+				close();
+				page = openRows(rangeURL(lastKey, true, endKey));
 			}
+			return true;
+		}
 
-		});
-		return Observable.empty();
+		@Override
+		public Document next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Document document = page.next();
+			return tracker.track(document, page.getLastKey());
+		}
+
+		public void close() {
+			try {
+				page.close();
+			} catch (IOException e) {
+				log.warn("Could not close " + downloadURL, e);
+			}
+		}
 	}
 }
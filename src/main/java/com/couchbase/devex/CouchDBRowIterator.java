@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonEncoding;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonFactory;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonToken;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.RawJsonDocument;
+
+/**
+ * Iterate over the rows of a CouchDB view response such as
+ * _all_docs?include_docs=true. The response is read token by token, so
+ * memory usage does not depend on the number of rows. The doc object of each
+ * row is copied token by token to a reused buffer and returned as a
+ * {@link RawJsonDocument}. Rows without a doc, like deleted documents or
+ * missing keys, are skipped. A response which does not end with the closing
+ * of the rows array and of the top level object is truncated and fails with
+ * an IOException.
+ *
+ * @author ldoguin
+ */
+public class CouchDBRowIterator implements Iterator<Document>, Closeable {
+
+	private static final Log log = LogFactory.getLog(CouchDBRowIterator.class);
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final JsonParser parser;
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+			4096);
+
+	private long totalRows = -1;
+
+	private long offset = -1;
+
+	private String lastKey;
+
+	private long rowCount = 0;
+
+	private Document next;
+
+	private boolean done = false;
+
+	public CouchDBRowIterator(InputStream in) throws IOException {
+		parser = JSON_FACTORY.createParser(in);
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			throw new IOException("Expected a JSON object at "
+					+ parser.getCurrentLocation());
+		}
+		// move to the rows array, reading the header fields on the way
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (CouchDBConfig.ROWS_PROPERTY.equals(field)
+					&& value == JsonToken.START_ARRAY) {
+				log.info(String.format(
+						"Query starting at offset %d for a total of %d rows.",
+						offset, totalRows));
+				return;
+			} else if (CouchDBConfig.TOTAL_ROWS_PROPERTY.equals(field)) {
+				totalRows = parser.getValueAsLong();
+			} else if (CouchDBConfig.OFFSET_PROPERTY.equals(field)) {
+				offset = parser.getValueAsLong();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (token != JsonToken.END_OBJECT) {
+			throw truncated();
+		}
+		// no rows in this response
+		done = true;
+	}
+
+	public long getTotalRows() {
+		return totalRows;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Number of rows read so far, including rows without a doc.
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Key of the last row read, whether it had a doc or not.
+	 */
+	public String getLastKey() {
+		return lastKey;
+	}
+
+	@Override
+	public boolean hasNext() {
+		try {
+			while (next == null && !done) {
+				next = readRow();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return next != null;
+	}
+
+	@Override
+	public Document next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Document current = next;
+		next = null;
+		return current;
+	}
+
+	private Document readRow() throws IOException {
+		JsonToken token = parser.nextToken();
+		if (token == JsonToken.END_ARRAY) {
+			readTrailer();
+			done = true;
+			log.info("end of the feed.");
+			return null;
+		} else if (token != JsonToken.START_OBJECT) {
+			throw truncated();
+		}
+		String id = null;
+		String key = null;
+		String doc = null;
+		while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if ("id".equals(field)) {
+				id = parser.getValueAsString();
+			} else if ("key".equals(field)
+					&& value == JsonToken.VALUE_STRING) {
+				key = parser.getText();
+			} else if ("doc".equals(field) && value == JsonToken.START_OBJECT) {
+				doc = copyCurrentStructure();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (token != JsonToken.END_OBJECT) {
+			throw truncated();
+		}
+		lastKey = key != null ? key : id;
+		rowCount++;
+		if (doc == null || lastKey == null) {
+			return null;
+		}
+		return RawJsonDocument.create(id != null ? id : key, doc);
+	}
+
+	/**
+	 * Read the fields following the rows array up to the end of the
+	 * response.
+	 */
+	private void readTrailer() throws IOException {
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			parser.nextToken();
+			parser.skipChildren();
+		}
+		if (token != JsonToken.END_OBJECT) {
+			throw truncated();
+		}
+	}
+
+	private IOException truncated() {
+		return new IOException(String.format(
+				"Truncated response at %s after %d rows.",
+				parser.getCurrentLocation(), rowCount));
+	}
+
+	private String copyCurrentStructure() throws IOException {
+		buffer.reset();
+		try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer,
+				JsonEncoding.UTF8)) {
+			generator.copyCurrentStructure(parser);
+		}
+		return buffer.toString(StandardCharsets.UTF_8.name());
+	}
+
+	@Override
+	public void close() throws IOException {
+		parser.close();
+	}
+}
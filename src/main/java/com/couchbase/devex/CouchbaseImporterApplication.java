@@ -15,6 +15,10 @@
  */
 package com.couchbase.devex;
 
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
@@ -26,12 +30,16 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
  * {@link com.couchbase.devex.Database} object. The
  * {@link com.couchbase.devex.ImportJsonToCouchbase} object is writing any
  * Couchbase {@link com.couchbase.client.java.document.Document} instance to the
- * configured Couchbase Server.
+ * configured {@link com.couchbase.devex.DocumentSink}, the Couchbase Server or
+ * an in memory stub to measure the throughput of the import.
  * 
  * Importers are injected depending on the configuration properties. All
  * importers must implement the @{link com.couchbase.devex.ImporterConfig}
  * interface. They must return an Observable of
- * {@link com.couchbase.client.java.document.Document}.
+ * {@link com.couchbase.client.java.document.Document}. At most
+ * maxConcurrentUpserts documents are written at the same time, one by one or
+ * by batches, the importer Observable is only asked for new documents when
+ * upserts complete.
  * 
  * @author ldoguin
  */
@@ -40,23 +48,50 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 @EnableConfigurationProperties
 public class CouchbaseImporterApplication implements CommandLineRunner {
 
+	/** Restart each stream after the position saved by the previous run. */
+	public static final String RESUME_OPTION = "--resume";
+
+	private static final Log log = LogFactory
+			.getLog(CouchbaseImporterApplication.class);
+
 	public static void main(String[] args) {
 		SpringApplication.run(CouchbaseImporterApplication.class, args);
 	}
 
-	@Autowired
-	private Database database;
-
 	@Autowired
 	private ImportJsonToCouchbase importJsonToCouchbase;
 
 	@Autowired
 	private ImporterConfig selectedConfig;
 
+	@Autowired
+	private Checkpoints checkpoints;
+
+	@Autowired
+	private ImportMetrics importMetrics;
+
+	@Autowired
+	private HighWaterMarks highWaterMarks;
+
 	@Override
 	public void run(String... args) throws Exception {
-		selectedConfig.startImport().flatMap(importJsonToCouchbase)
-				.toBlocking().last();
+		if (Arrays.asList(args).contains(RESUME_OPTION)) {
+			checkpoints.resume();
+		}
+		checkpoints.start();
+		importMetrics.onStart();
+		importJsonToCouchbase
+				.importDocuments(
+						selectedConfig.startImport().doOnNext(
+								importMetrics::onRead)).toBlocking()
+				.lastOrDefault(null);
+		checkpoints.save();
+		if (importMetrics.getDocumentsFailed() == 0) {
+			highWaterMarks.commit();
+		} else {
+			log.warn("Some documents could not be imported, high water marks are not updated.");
+		}
+		importMetrics.logSummary();
 	}
 
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import rx.Observable;
+import rx.Subscription;
+
+import com.couchbase.client.core.config.BucketConfig;
+import com.couchbase.client.core.config.CouchbaseBucketConfig;
+import com.couchbase.client.core.message.cluster.GetClusterConfigRequest;
+import com.couchbase.client.core.message.cluster.GetClusterConfigResponse;
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.bucket.AsyncBucketManager;
+import com.couchbase.client.java.document.Document;
+
+/**
+ * {@link DocumentSink} upserting the documents in a Couchbase bucket. Keys
+ * are mapped to nodes like the SDK does, with the partition map of the
+ * bucket configuration. The configuration is fetched asynchronously every 10
+ * seconds to follow rebalances, mapping a key only reads the last one.
+ *
+ * @author ldoguin
+ */
+public class CouchbaseSink implements DocumentSink {
+
+	private static final Log log = LogFactory.getLog(CouchbaseSink.class);
+
+	private static final long CONFIG_REFRESH_INTERVAL = 10;
+
+	private final AsyncBucket asyncBucket;
+
+	private final Subscription configRefresh;
+
+	private volatile CouchbaseBucketConfig config;
+
+	public CouchbaseSink(AsyncBucket asyncBucket) {
+		this.asyncBucket = asyncBucket;
+		this.configRefresh = Observable
+				.interval(0, CONFIG_REFRESH_INTERVAL, TimeUnit.SECONDS)
+				.onBackpressureDrop()
+				.concatMap(
+						t -> fetchConfig().onErrorResumeNext(e -> {
+							log.warn("Could not refresh the bucket configuration", e);
+							return Observable.empty();
+						})).subscribe(bucketConfig -> config = bucketConfig);
+	}
+
+	/**
+	 * Stop refreshing the bucket configuration.
+	 */
+	public void close() {
+		configRefresh.unsubscribe();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Observable<Document> upsert(Document document) {
+		return asyncBucket.upsert(document);
+	}
+
+	@Override
+	public int nodeCount() {
+		return asyncBucket.bucketManager().flatMap(AsyncBucketManager::info)
+				.toBlocking().single().nodeCount();
+	}
+
+	@Override
+	public int nodeIndex(String id) {
+		CouchbaseBucketConfig config = this.config;
+		if (config == null) {
+			// memcached buckets are not partitioned, nor keys before the first
+			// configuration is fetched
+			return 0;
+		}
+		return config.nodeIndexForMaster(partition(id,
+				config.numberOfPartitions()));
+	}
+
+	/**
+	 * The current configuration of the bucket, or null if it is not a
+	 * Couchbase bucket.
+	 */
+	private Observable<CouchbaseBucketConfig> fetchConfig() {
+		return asyncBucket
+				.core()
+				.flatMap(
+						core -> core
+								.<GetClusterConfigResponse> send(new GetClusterConfigRequest()))
+				.map(response -> {
+					BucketConfig bucketConfig = response.config().bucketConfig(
+							asyncBucket.name());
+					return bucketConfig instanceof CouchbaseBucketConfig ? (CouchbaseBucketConfig) bucketConfig
+							: null;
+				}).timeout(CONFIG_REFRESH_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Partition (vBucket) of the given key, computed like the SDK does.
+	 */
+	public static int partition(String id, int numberOfPartitions) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(id.getBytes(StandardCharsets.UTF_8));
+		long hash = (crc32.getValue() >> 16) & 0x7fff;
+		return (int) hash & (numberOfPartitions - 1);
+	}
+}
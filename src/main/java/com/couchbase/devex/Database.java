@@ -15,20 +15,25 @@
  */
 package com.couchbase.devex;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import com.couchbase.client.java.AsyncBucket;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.transcoder.Transcoder;
 
 /**
  * Created by ldoguin on 17/08/15.
  */
 @Configuration
+@ConditionalOnProperty(name = { "sink" }, havingValue = "COUCHBASE", matchIfMissing = true)
 public class Database {
 
 	@Value("${hostname:localhost}")
@@ -47,6 +52,15 @@ public class Database {
 
 	@Bean
 	public AsyncBucket asyncBucket() {
-		return cluster().openBucket(bucket, password).async();
+		List<Transcoder<? extends Document, ?>> transcoders = Arrays
+				.<Transcoder<? extends Document, ?>> asList(
+						new ByteBufJsonTranscoder(),
+						new ByteBufBinaryTranscoder());
+		return cluster().openBucket(bucket, password, transcoders).async();
+	}
+
+	@Bean
+	public DocumentSink documentSink() {
+		return new CouchbaseSink(asyncBucket());
 	}
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.util.Locale;
+
+/**
+ * Convert dates to epoch milliseconds with an immutable
+ * {@link DateTimeFormatter}, so a single instance can be shared by all the
+ * threads parsing a file. Dates without a time zone are read in the default
+ * one, and dates without a time at midnight, as SimpleDateFormat did.
+ * Parsing is lenient and the day of the week is not checked either.
+ *
+ * Files usually contain many times the same dates. The last converted values
+ * are kept in a small direct mapped cache, indexed by the hash of the date
+ * String. Entries are immutable, so concurrent readers and writers only
+ * ever see a complete entry or miss.
+ *
+ * @author ldoguin
+ */
+public class DateConverter {
+
+	private static final int CACHE_SIZE = 1024;
+
+	private static final class Entry {
+		final String date;
+		final long millis;
+
+		Entry(String date, long millis) {
+			this.date = date;
+			this.millis = millis;
+		}
+	}
+
+	private final DateTimeFormatter formatter;
+
+	private final ZoneId defaultZone = ZoneId.systemDefault();
+
+	private final Entry[] cache = new Entry[CACHE_SIZE];
+
+	public DateConverter(String pattern, Locale locale) {
+		// lenient like SimpleDateFormat, and the day of the week is ignored
+		// rather than checked against the date
+		this.formatter = DateTimeFormatter
+				.ofPattern(pattern, locale)
+				.withResolverStyle(ResolverStyle.LENIENT)
+				.withResolverFields(ChronoField.ERA, ChronoField.YEAR_OF_ERA,
+						ChronoField.YEAR, ChronoField.MONTH_OF_YEAR,
+						ChronoField.DAY_OF_MONTH, ChronoField.DAY_OF_YEAR,
+						ChronoField.AMPM_OF_DAY, ChronoField.HOUR_OF_AMPM,
+						ChronoField.CLOCK_HOUR_OF_AMPM, ChronoField.HOUR_OF_DAY,
+						ChronoField.CLOCK_HOUR_OF_DAY, ChronoField.MINUTE_OF_HOUR,
+						ChronoField.SECOND_OF_MINUTE, ChronoField.MILLI_OF_SECOND,
+						ChronoField.NANO_OF_SECOND, ChronoField.OFFSET_SECONDS);
+	}
+
+	public long toEpochMillis(String date) {
+		int index = (date.hashCode() ^ (date.hashCode() >>> 16))
+				& (CACHE_SIZE - 1);
+		Entry entry = cache[index];
+		if (entry != null && entry.date.equals(date)) {
+			return entry.millis;
+		}
+		long millis = parse(date);
+		cache[index] = new Entry(date, millis);
+		return millis;
+	}
+
+	private long parse(String date) {
+		TemporalAccessor parsed = formatter.parse(date);
+		if (parsed.isSupported(ChronoField.INSTANT_SECONDS)) {
+			return Instant.from(parsed).toEpochMilli();
+		}
+		LocalDate localDate = parsed.query(TemporalQueries.localDate());
+		LocalTime localTime = parsed.query(TemporalQueries.localTime());
+		ZoneId zone = parsed.query(TemporalQueries.zone());
+		return localDate
+				.atTime(localTime != null ? localTime : LocalTime.MIDNIGHT)
+				.atZone(zone != null ? zone : defaultZone).toInstant()
+				.toEpochMilli();
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.iq80.snappy.Snappy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.transcoder.TranscoderUtils;
+
+/**
+ * Optional compression of the JSON documents of at least
+ * compressionThreshold bytes. Compressed documents are stored as a
+ * {@link ByteBufBinaryDocument} flagged with {@link #SNAPPY_JSON_FLAGS}, the
+ * binary common flags with the compression bits set to 1. JSON transcoders
+ * reject them, binary transcoders return the compressed bytes, which readers
+ * must uncompress with Snappy. Documents that do not get smaller are stored
+ * as is.
+ *
+ * @author ldoguin
+ */
+@Configuration
+public class DocumentCompressor {
+
+	private static final Log log = LogFactory.getLog(DocumentCompressor.class);
+
+	/** JSON document compressed with Snappy, stored as binary. */
+	public static final int SNAPPY_JSON_FLAGS = TranscoderUtils.BINARY_COMMON_FLAGS
+			| 1 << 29;
+
+	public enum Compression {
+		NONE, SNAPPY
+	}
+
+	@Value("${compression:NONE}")
+	private Compression compression;
+
+	@Value("${compressionThreshold:4096}")
+	private int compressionThreshold;
+
+	@PostConstruct
+	public void init() {
+		if (compression != Compression.NONE) {
+			log.info(String.format(
+					"Compressing documents of at least %d bytes with %s.",
+					compressionThreshold, compression));
+		}
+	}
+
+	/**
+	 * The given document, compressed if it is a JSON document large enough.
+	 */
+	public Document compress(Document document) {
+		if (compression == Compression.NONE) {
+			return document;
+		}
+		byte[] json;
+		int offset = 0;
+		int length;
+		if (document instanceof ByteBufJsonDocument) {
+			ByteBuf content = ((ByteBufJsonDocument) document).content();
+			length = content.readableBytes();
+			if (length < compressionThreshold) {
+				return document;
+			}
+			if (content.hasArray()) {
+				json = content.array();
+				offset = content.arrayOffset() + content.readerIndex();
+			} else {
+				json = new byte[length];
+				content.getBytes(content.readerIndex(), json);
+			}
+		} else if (document instanceof RawJsonDocument) {
+			String content = ((RawJsonDocument) document).content();
+			// at most 3 bytes per char
+			if (content.length() * 3 < compressionThreshold) {
+				return document;
+			}
+			json = content.getBytes(StandardCharsets.UTF_8);
+			length = json.length;
+			if (length < compressionThreshold) {
+				return document;
+			}
+		} else {
+			return document;
+		}
+		byte[] compressed = new byte[Snappy.maxCompressedLength(length)];
+		int compressedLength = Snappy.compress(json, offset, length,
+				compressed, 0);
+		if (compressedLength >= length) {
+			return document;
+		}
+		return ByteBufBinaryDocument.create(document.id(), document.expiry(),
+				Unpooled.wrappedBuffer(compressed, 0, compressedLength), 0,
+				null, SNAPPY_JSON_FLAGS);
+	}
+}
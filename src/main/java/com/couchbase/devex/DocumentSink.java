@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import rx.Observable;
+
+import com.couchbase.client.java.document.Document;
+
+/**
+ * Destination of the imported documents. The Couchbase bucket configured by
+ * {@link Database} is used by default, set the 'sink' property to 'STUB' to
+ * import into the in memory {@link StubSink} instead.
+ *
+ * @author ldoguin
+ */
+public interface DocumentSink {
+
+	/**
+	 * Insert or replace the given document, emitting it once acknowledged.
+	 */
+	Observable<Document> upsert(Document document);
+
+	/**
+	 * Number of nodes the documents are spread on.
+	 */
+	int nodeCount();
+
+	/**
+	 * Index of the node owning the given key, used to send the upserts of a
+	 * batch node by node.
+	 */
+	int nodeIndex(String id);
+
+}
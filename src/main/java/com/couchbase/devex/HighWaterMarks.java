@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.core.type.TypeReference;
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * High water marks of the sources imported incrementally, saved in
+ * highWaterMarkFilename as a JSON object of source names to marks. Unlike
+ * checkpoints they are always loaded: each run only imports what changed
+ * after the mark of the previous run. The marks reached by a run are only
+ * written by {@link #commit()}, once every document was imported, so a
+ * failed run is imported again by the next one.
+ *
+ * @author ldoguin
+ */
+@Configuration
+public class HighWaterMarks {
+
+	private static final Log log = LogFactory.getLog(HighWaterMarks.class);
+
+	@Value("${highWaterMarkFilename:highwatermarks.json}")
+	private String highWaterMarkFilename;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private Map<String, String> marks = Collections.emptyMap();
+
+	private final Map<String, String> reached = new LinkedHashMap<String, String>();
+
+	@PostConstruct
+	public synchronized void load() throws IOException {
+		File file = new File(highWaterMarkFilename);
+		if (file.exists()) {
+			marks = mapper.readValue(file,
+					new TypeReference<LinkedHashMap<String, String>>() {
+					});
+		}
+	}
+
+	/**
+	 * Mark saved by the last complete run for the given source, or null if it
+	 * was never imported.
+	 */
+	public synchronized String get(String name) {
+		return marks.get(name);
+	}
+
+	/**
+	 * Set the mark the given source will have once this run completes.
+	 */
+	public synchronized void reach(String name, Object mark) {
+		reached.put(name, mark.toString());
+	}
+
+	/**
+	 * Write the marks reached by this run. Sources not read by this run keep
+	 * their mark.
+	 */
+	public synchronized void commit() throws IOException {
+		if (reached.isEmpty()) {
+			return;
+		}
+		Map<String, String> updated = new LinkedHashMap<String, String>(marks);
+		updated.putAll(reached);
+		Path target = Paths.get(highWaterMarkFilename).toAbsolutePath();
+		Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+		mapper.writeValue(temporary.toFile(), updated);
+		Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		marks = updated;
+		log.info(String.format("Saved %d high water marks to %s.",
+				reached.size(), highWaterMarkFilename));
+		reached.clear();
+	}
+}
@@ -15,11 +15,20 @@
  */
 package com.couchbase.devex;
 
-import static com.couchbase.client.core.time.Delay.fixed;
-
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,14 +37,17 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 
 import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
 import rx.functions.Func1;
+import rx.observers.SerializedSubscriber;
+import rx.schedulers.Schedulers;
 
 import com.couchbase.client.core.BackpressureException;
 import com.couchbase.client.core.RequestCancelledException;
-import com.couchbase.client.java.AsyncBucket;
 import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.error.TemporaryFailureException;
-import com.couchbase.client.java.util.retry.RetryBuilder;
+import com.couchbase.devex.KeyJournal.FsyncPolicy;
 
 /**
  * Created by ldoguin on 16/08/15.
@@ -53,7 +65,13 @@ public class ImportJsonToCouchbase implements
 	@Value("${successLogFilename:success.out}")
 	private String successLogFilename;
 
-	@Value("${requestCancelledExceptionDelay:31000}")
+	@Value("${journalFlushInterval:1000}")
+	private long journalFlushInterval;
+
+	@Value("${journalFsyncPolicy:NEVER}")
+	private FsyncPolicy journalFsyncPolicy;
+
+	@Value("${requestCancelledExceptionDelay:1000}")
 	private long requestCancelledExceptionDelay;
 
 	@Value("${requestCancelledExceptionRetries:100}")
@@ -65,58 +83,395 @@ public class ImportJsonToCouchbase implements
 	@Value("${temporaryFailureExceptionRetries:100}")
 	private int temporaryFailureExceptionRetries;
 
+	@Value("${maxRetryDelay:31000}")
+	private long maxRetryDelay;
+
 	@Value("${importTimeout:500}")
 	private long importTimeout;
 
+	@Value("${maxConcurrentUpserts:256}")
+	private int maxConcurrentUpserts;
+
+	@Value("${maxConcurrentUpsertsPerNode:0}")
+	private int maxConcurrentUpsertsPerNode;
+
+	@Value("${batchSize:1}")
+	private int batchSize;
+
 	@Autowired
-	AsyncBucket asyncBucket;
+	DocumentSink documentSink;
+
+	@Autowired
+	ThroughputController throughputController;
+
+	@Autowired
+	ImportMetrics importMetrics;
+
+	@Autowired
+	DocumentCompressor documentCompressor;
+
+	@Autowired
+	ContentHashIndex contentHashIndex;
+
+	private KeyJournal successLog;
+
+	private KeyJournal errorLog;
+
+	private int window;
+
+	private JitteredBackoff burstBackoff;
+
+	@PostConstruct
+	public void init() {
+		successLog = new KeyJournal(successLogFilename, journalFlushInterval,
+				journalFsyncPolicy);
+		errorLog = new KeyJournal(errorLogFilename, journalFlushInterval,
+				journalFsyncPolicy);
+		importMetrics.setJournals(successLog, errorLog);
+		window = computeMaxConcurrentUpserts();
+		burstBackoff = new JitteredBackoff(temporaryFailureExceptionDelay,
+				maxRetryDelay, temporaryFailureExceptionRetries);
+		if (isBatching()) {
+			// a batch is sent as one burst per node
+			throughputController.setMaxConcurrency(Math.max(1, window
+					* documentSink.nodeCount() / batchSize));
+		} else {
+			throughputController.setMaxConcurrency(window);
+		}
+	}
+
+	@PreDestroy
+	public void closeJournals() throws IOException {
+		try {
+			successLog.close();
+		} finally {
+			errorLog.close();
+		}
+	}
+
+	/**
+	 * Size of the in-flight window, the maximum number of upserts waiting for
+	 * an acknowledgement from the cluster. If maxConcurrentUpsertsPerNode is
+	 * set, the window is scaled by the number of nodes of the bucket,
+	 * otherwise maxConcurrentUpserts is used. The
+	 * {@link ThroughputController} moves the effective window below this
+	 * bound.
+	 */
+	public int getMaxConcurrentUpserts() {
+		return window;
+	}
+
+	private boolean isBatching() {
+		return batchSize > 1;
+	}
+
+	/**
+	 * Number of batches in flight at the same time, so that about
+	 * maxConcurrentUpserts documents are.
+	 */
+	private int getMaxConcurrentBatches() {
+		return Math.max(1, window / batchSize);
+	}
+
+	private int computeMaxConcurrentUpserts() {
+		if (maxConcurrentUpsertsPerNode <= 0) {
+			return maxConcurrentUpserts;
+		}
+		int nodeCount = documentSink.nodeCount();
+		log.info(String.format(
+				"Allowing %d concurrent upserts on each of the %d nodes.",
+				maxConcurrentUpsertsPerNode, nodeCount));
+		return Math.max(1, nodeCount * maxConcurrentUpsertsPerNode);
+	}
 
 	public void writeToSuccessLog(String text) {
-		writeToFile(successLogFilename, text);
+		successLog.append(text);
 	}
 
 	public void writeToErrorLog(String text) {
-		writeToFile(errorLogFilename, text);
+		errorLog.append(text);
+	}
+
+	/**
+	 * Upsert the given documents, one by one or by batches of batchSize
+	 * documents if it is greater than 1. Emits the imported documents.
+	 * Documents which did not change since they were last written are
+	 * skipped if the {@link ContentHashIndex} is enabled. Fails as soon as
+	 * the success or error log cannot be written.
+	 */
+	public Observable<Document> importDocuments(Observable<Document> documents) {
+		documents = documents.doOnNext(d -> {
+			successLog.checkWritable();
+			errorLog.checkWritable();
+		});
+		if (contentHashIndex.isEnabled()) {
+			documents = documents.filter(this::isChanged);
+		}
+		if (!isBatching()) {
+			return documents.flatMap(this, window);
+		}
+		// batches waiting to retry some documents do not hold a slot of the
+		// window, read ahead so that they do not stall the import
+		return documents.buffer(batchSize).flatMap(this::importBatch,
+				2 * getMaxConcurrentBatches());
 	}
 
-	public void writeToFile(String filename, String text) {
-		try (FileWriter fw = new FileWriter(filename, true);) {
-			fw.write(text + System.getProperty("line.separator"));
-			fw.close();
-		} catch (IOException ioe) {
-			throw new RuntimeException(ioe);
+	/**
+	 * False if the given document is unchanged, in which case it is
+	 * acknowledged right away.
+	 */
+	private boolean isChanged(Document tracked) {
+		Document doc = CheckpointTracker.unwrap(tracked);
+		if (!contentHashIndex.isUnchanged(doc)) {
+			return true;
 		}
+		importMetrics.onSkipped(doc);
+		CheckpointTracker.acknowledge(tracked);
+		return false;
 	}
 
+	/**
+	 * Record the content of an imported document in the
+	 * {@link ContentHashIndex}.
+	 */
+	private void onImported(Document tracked) {
+		if (contentHashIndex.isEnabled()) {
+			contentHashIndex.update(CheckpointTracker.unwrap(tracked));
+		}
+	}
+
+	/**
+	 * Upsert the given document, retrying on temporary errors. Documents
+	 * tracked by a {@link CheckpointTracker} are acknowledged once their
+	 * upsert succeeded. Definitive failures are recorded in the error log and
+	 * hold the checkpoint of their stream before them.
+	 */
 	@Override
-	public Observable<? extends Document> call(Document doc) {
-		return asyncBucket
-				.upsert(doc)
-				.timeout(importTimeout, TimeUnit.MILLISECONDS)
-				.retryWhen(
-						RetryBuilder
-								.anyOf(RequestCancelledException.class)
-								.delay(fixed(requestCancelledExceptionDelay,
-										TimeUnit.MILLISECONDS))
-								.max(requestCancelledExceptionRetries).build())
-				.retryWhen(
-						RetryBuilder
-								.anyOf(TemporaryFailureException.class,
-										BackpressureException.class)
-								.delay(fixed(temporaryFailureExceptionDelay,
-										TimeUnit.MILLISECONDS))
-								.max(temporaryFailureExceptionRetries).build())
+	public Observable<? extends Document> call(Document tracked) {
+		Document doc = documentCompressor.compress(CheckpointTracker
+				.unwrap(tracked));
+		Observable<Document> upsert = Observable.defer(() -> {
+			long start = System.nanoTime();
+			return documentSink
+					.upsert(doc)
+					.timeout(importTimeout, TimeUnit.MILLISECONDS)
+					.doOnNext(d -> {
+						long latency = System.nanoTime() - start;
+						throughputController.onSuccess(latency);
+						importMetrics.onImported(doc, latency);
+					})
+					.doOnError(throughputController::onFailure);
+		});
+		return throughputController
+				.throttle(
+						upsert.retryWhen(
+								new JitteredBackoff(
+										requestCancelledExceptionDelay,
+										maxRetryDelay,
+										requestCancelledExceptionRetries,
+										RequestCancelledException.class)
+										.onRetry(importMetrics::onRetry))
+								.retryWhen(
+										new JitteredBackoff(
+												temporaryFailureExceptionDelay,
+												maxRetryDelay,
+												temporaryFailureExceptionRetries,
+												TemporaryFailureException.class,
+												BackpressureException.class)
+												.onRetry(importMetrics::onRetry)))
 				.doOnError(t -> writeToErrorLog(doc.id()))
-				.doOnNext(jd -> writeToSuccessLog(doc.id()))
+				.doOnNext(jd -> {
+					writeToSuccessLog(doc.id());
+					onImported(tracked);
+					CheckpointTracker.acknowledge(tracked);
+				})
 				.onErrorResumeNext(
 						new Func1<Throwable, Observable<Document>>() {
 							@Override
 							public Observable<Document> call(Throwable throwable) {
-								log.error(String.format(
-										"Could not import document ", doc.id()));
-								log.error(throwable);
+								logFailure(doc, throwable);
+								CheckpointTracker.fail(tracked);
 								return Observable.empty();
 							}
 						});
 	}
+
+	private void logFailure(Document doc, Throwable throwable) {
+		log.error(String.format("Could not import document %s", doc.id()));
+		log.error(throwable);
+		importMetrics.onFailed(doc);
+	}
+
+	/**
+	 * Split the given batch by node and send each part as one burst of
+	 * upserts.
+	 */
+	private Observable<Document> importBatch(List<Document> batch) {
+		Map<Integer, List<Document>> byNode = new LinkedHashMap<Integer, List<Document>>();
+		for (Document tracked : batch) {
+			String id = CheckpointTracker.unwrap(tracked).id();
+			byNode.computeIfAbsent(documentSink.nodeIndex(id),
+					k -> new ArrayList<Document>()).add(tracked);
+		}
+		return Observable.from(byNode.values()).flatMap(
+				documents -> upsertBurst(documents, 0));
+	}
+
+	/**
+	 * Upsert the given documents at once, taking a single slot of the
+	 * concurrency window. Then send the ones which failed with a temporary
+	 * error again after a single backoff delay, until
+	 * temporaryFailureExceptionRetries attempts.
+	 */
+	private Observable<Document> upsertBurst(List<Document> documents,
+			int attempt) {
+		UpsertBurst burst = new UpsertBurst(documents, attempt);
+		return throughputController.throttle(Observable.create(burst)).concatWith(
+				Observable.defer(() -> {
+					List<Document> retries = new ArrayList<Document>(
+							burst.retries);
+					if (retries.isEmpty()) {
+						return Observable.<Document> empty();
+					}
+					return Observable.timer(
+							burstBackoff.delay(attempt),
+							TimeUnit.MILLISECONDS).flatMap(
+							t -> upsertBurst(retries, attempt + 1));
+				}));
+	}
+
+	/**
+	 * One burst of upserts. Each document is sent with a plain subscriber,
+	 * without any operator of its own, and the whole burst shares one
+	 * timeout. Successes and definitive failures are accounted for as they
+	 * come, documents to retry are collected for the next burst.
+	 */
+	private class UpsertBurst implements Observable.OnSubscribe<Document> {
+
+		private static final int PENDING = 0;
+
+		private static final int DONE = 1;
+
+		private final List<Document> documents;
+
+		private final Document[] upserted;
+
+		private final boolean lastAttempt;
+
+		private final AtomicIntegerArray states;
+
+		private final AtomicInteger remaining;
+
+		private final Queue<Document> retries = new ConcurrentLinkedQueue<Document>();
+
+		private Subscriber<? super Document> subscriber;
+
+		private Scheduler.Worker timer;
+
+		UpsertBurst(List<Document> documents, int attempt) {
+			this.documents = documents;
+			this.upserted = new Document[documents.size()];
+			for (int i = 0; i < documents.size(); i++) {
+				upserted[i] = documentCompressor.compress(CheckpointTracker
+						.unwrap(documents.get(i)));
+			}
+			this.lastAttempt = attempt >= temporaryFailureExceptionRetries;
+			this.states = new AtomicIntegerArray(documents.size());
+			this.remaining = new AtomicInteger(documents.size());
+		}
+
+		@Override
+		public void call(Subscriber<? super Document> subscriber) {
+			this.subscriber = new SerializedSubscriber<Document>(subscriber);
+			long start = System.nanoTime();
+			List<UpsertSubscriber> upserts = new ArrayList<UpsertSubscriber>(
+					documents.size());
+			for (int i = 0; i < documents.size(); i++) {
+				upserts.add(new UpsertSubscriber(i, start));
+			}
+			timer = Schedulers.computation().createWorker();
+			subscriber.add(timer);
+			timer.schedule(() -> {
+				for (int i = 0; i < upserts.size(); i++) {
+					if (states.compareAndSet(i, PENDING, DONE)) {
+						upserts.get(i).unsubscribe();
+						onError(i, new TimeoutException());
+					}
+				}
+			}, importTimeout, TimeUnit.MILLISECONDS);
+			for (int i = 0; i < documents.size(); i++) {
+				documentSink.upsert(upserted[i]).subscribe(upserts.get(i));
+			}
+		}
+
+		private void onSuccess(int index, long latency) {
+			Document tracked = documents.get(index);
+			Document doc = upserted[index];
+			throughputController.onSuccess(latency);
+			importMetrics.onImported(doc, latency);
+			writeToSuccessLog(doc.id());
+			onImported(tracked);
+			CheckpointTracker.acknowledge(tracked);
+			subscriber.onNext(tracked);
+			terminated();
+		}
+
+		private void onError(int index, Throwable throwable) {
+			Document tracked = documents.get(index);
+			Document doc = upserted[index];
+			throughputController.onFailure(throwable);
+			if (!lastAttempt && isTemporary(throwable)) {
+				importMetrics.onRetry(throwable);
+				retries.add(tracked);
+			} else {
+				writeToErrorLog(doc.id());
+				logFailure(doc, throwable);
+				CheckpointTracker.fail(tracked);
+			}
+			terminated();
+		}
+
+		private void terminated() {
+			if (remaining.decrementAndGet() == 0) {
+				timer.unsubscribe();
+				subscriber.onCompleted();
+			}
+		}
+
+		private class UpsertSubscriber extends Subscriber<Document> {
+
+			private final int index;
+
+			private final long start;
+
+			UpsertSubscriber(int index, long start) {
+				this.index = index;
+				this.start = start;
+			}
+
+			@Override
+			public void onNext(Document document) {
+				if (states.compareAndSet(index, PENDING, DONE)) {
+					onSuccess(index, System.nanoTime() - start);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				if (states.compareAndSet(index, PENDING, DONE)) {
+					UpsertBurst.this.onError(index, throwable);
+				}
+			}
+
+			@Override
+			public void onCompleted() {
+			}
+		}
+	}
+
+	private static boolean isTemporary(Throwable throwable) {
+		return throwable instanceof RequestCancelledException
+				|| throwable instanceof TemporaryFailureException
+				|| throwable instanceof BackpressureException;
+	}
 }
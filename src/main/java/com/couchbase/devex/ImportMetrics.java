@@ -0,0 +1,422 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.databind.ObjectMapper;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.org.HdrHistogram.Histogram;
+import com.couchbase.client.deps.org.HdrHistogram.Recorder;
+import com.couchbase.client.java.document.Document;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Metrics of the running import: documents and bytes read from the source,
+ * imported or failed, upsert latency percentiles, retries by exception and
+ * depth of the queues between the stages. Counters are updated by the
+ * pipeline threads without locking. Every metricsInterval milliseconds the
+ * rates and latency percentiles of the last interval are computed and
+ * logged. Metrics are exposed as JMX attributes of
+ * com.couchbase.devex:type=ImportMetrics and, if metricsHttpPort is set, as
+ * a JSON object on http://localhost:metricsHttpPort/metrics.
+ *
+ * @author ldoguin
+ */
+@Configuration
+@ManagedResource(objectName = "com.couchbase.devex:type=ImportMetrics", description = "Couchbase import metrics")
+public class ImportMetrics {
+
+	private static final Log log = LogFactory.getLog(ImportMetrics.class);
+
+	private static final long MAX_TRACKED_LATENCY = TimeUnit.MINUTES
+			.toMicros(5);
+
+	public static final String HTTP_PATH = "/metrics";
+
+	@Value("${metricsInterval:10000}")
+	private long metricsInterval;
+
+	@Value("${metricsHttpPort:0}")
+	private int metricsHttpPort;
+
+	@Autowired
+	ThroughputController throughputController;
+
+	private final LongAdder documentsRead = new LongAdder();
+
+	private final LongAdder bytesRead = new LongAdder();
+
+	private final LongAdder documentsImported = new LongAdder();
+
+	private final LongAdder bytesImported = new LongAdder();
+
+	private final LongAdder documentsFailed = new LongAdder();
+
+	private final LongAdder documentsSkipped = new LongAdder();
+
+	private final Map<String, LongAdder> retries = new ConcurrentHashMap<String, LongAdder>();
+
+	private final Recorder latencies = new Recorder(MAX_TRACKED_LATENCY, 2);
+
+	private final Histogram totalLatencies = new Histogram(
+			MAX_TRACKED_LATENCY, 2);
+
+	private Histogram intervalLatencies;
+
+	private KeyJournal[] journals = new KeyJournal[0];
+
+	private ScheduledExecutorService scheduler;
+
+	private HttpServer httpServer;
+
+	private long lastReport = System.nanoTime();
+
+	private long lastRead;
+
+	private long lastImported;
+
+	private long lastBytesImported;
+
+	private volatile double readRate;
+
+	private volatile double importRate;
+
+	private volatile double importByteRate;
+
+	private volatile double[] latencyPercentiles = new double[4];
+
+	private volatile long importStart = System.nanoTime();
+
+	@PostConstruct
+	public void start() throws IOException {
+		if (metricsInterval > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "metrics");
+				t.setDaemon(true);
+				return t;
+			});
+			scheduler.scheduleAtFixedRate(this::report, metricsInterval,
+					metricsInterval, TimeUnit.MILLISECONDS);
+		}
+		if (metricsHttpPort > 0) {
+			ObjectMapper mapper = new ObjectMapper();
+			httpServer = HttpServer.create(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), metricsHttpPort), 0);
+			httpServer.createContext(HTTP_PATH, exchange -> {
+				byte[] body = mapper.writeValueAsBytes(getMetrics());
+				exchange.getResponseHeaders().set("Content-Type",
+						"application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			httpServer.start();
+			log.info(String.format("Metrics available on http://localhost:%d%s",
+					metricsHttpPort, HTTP_PATH));
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (httpServer != null) {
+			httpServer.stop(0);
+		}
+		report();
+	}
+
+	/**
+	 * Journals whose pending keys are reported as a queue depth.
+	 */
+	public void setJournals(KeyJournal... journals) {
+		this.journals = journals;
+	}
+
+	/**
+	 * Mark the start of the import, once the sink is connected.
+	 */
+	public void onStart() {
+		importStart = System.nanoTime();
+	}
+
+	public void onRead(Document document) {
+		documentsRead.increment();
+		bytesRead.add(contentSize(document));
+	}
+
+	/**
+	 * Record a successful upsert and its latency in nanoseconds.
+	 */
+	public void onImported(Document document, long latency) {
+		documentsImported.increment();
+		bytesImported.add(contentSize(document));
+		latencies.recordValue(Math.min(MAX_TRACKED_LATENCY,
+				TimeUnit.NANOSECONDS.toMicros(latency)));
+	}
+
+	public void onFailed(Document document) {
+		documentsFailed.increment();
+	}
+
+	/**
+	 * Record a document not upserted as it did not change.
+	 */
+	public void onSkipped(Document document) {
+		documentsSkipped.increment();
+	}
+
+	public void onRetry(Throwable throwable) {
+		retries.computeIfAbsent(throwable.getClass().getSimpleName(),
+				k -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Size of the content of the given document, when it is known without
+	 * encoding it.
+	 */
+	static long contentSize(Document document) {
+		Object content = document.content();
+		if (content instanceof ByteBuf) {
+			return ((ByteBuf) content).readableBytes();
+		} else if (content instanceof String) {
+			return ((String) content).length();
+		}
+		return 0;
+	}
+
+	/**
+	 * Compute the rates and percentiles of the interval since the last call,
+	 * and log them.
+	 */
+	public synchronized void report() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - lastReport) / 1e9;
+		long read = documentsRead.sum();
+		long imported = documentsImported.sum();
+		long bytes = bytesImported.sum();
+		readRate = (read - lastRead) / seconds;
+		importRate = (imported - lastImported) / seconds;
+		importByteRate = (bytes - lastBytesImported) / seconds;
+		lastReport = now;
+		lastRead = read;
+		lastImported = imported;
+		lastBytesImported = bytes;
+		intervalLatencies = latencies.getIntervalHistogram(intervalLatencies);
+		totalLatencies.add(intervalLatencies);
+		latencyPercentiles = new double[] {
+				toMillis(intervalLatencies.getValueAtPercentile(50)),
+				toMillis(intervalLatencies.getValueAtPercentile(99)),
+				toMillis(intervalLatencies.getValueAtPercentile(99.9)),
+				toMillis(intervalLatencies.getMaxValue()) };
+		log.info(String.format(
+				"Read %d docs (%.0f/s), imported %d (%.0f/s, %.2f MB/s), skipped %d, failed %d, retries %s, "
+						+ "latency p50 %.1fms p99 %.1fms p99.9 %.1fms max %.1fms, "
+						+ "in flight %d/%d, waiting %d, pending %d, journal %d",
+				read, readRate, imported, importRate,
+				importByteRate / (1024 * 1024), getDocumentsSkipped(),
+				getDocumentsFailed(), getRetries(), latencyPercentiles[0],
+				latencyPercentiles[1], latencyPercentiles[2],
+				latencyPercentiles[3], getInFlight(),
+				getConcurrencyLimit(), getWaiting(), getPending(),
+				getJournalPending()));
+	}
+
+	/**
+	 * Log the totals of the import since {@link #onStart()}: documents
+	 * imported and failed, average throughput and latency percentiles over
+	 * the whole run.
+	 */
+	public synchronized void logSummary() {
+		report();
+		double seconds = Math.max(1, System.nanoTime() - importStart) / 1e9;
+		long imported = getDocumentsImported();
+		log.info(String.format(
+				"Imported %d docs in %.1fs (%.0f/s, %.2f MB/s), skipped %d, failed %d, retries %s, "
+						+ "latency p50 %.1fms p99 %.1fms p99.9 %.1fms max %.1fms",
+				imported, seconds, imported / seconds, getBytesImported()
+						/ seconds / (1024 * 1024), getDocumentsSkipped(),
+				getDocumentsFailed(),
+				getRetries(),
+				toMillis(totalLatencies.getValueAtPercentile(50)),
+				toMillis(totalLatencies.getValueAtPercentile(99)),
+				toMillis(totalLatencies.getValueAtPercentile(99.9)),
+				toMillis(totalLatencies.getMaxValue())));
+	}
+
+	private static double toMillis(long micros) {
+		return micros / 1000.0;
+	}
+
+	/**
+	 * All the metrics, as published on the HTTP endpoint.
+	 */
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("documentsRead", getDocumentsRead());
+		metrics.put("bytesRead", getBytesRead());
+		metrics.put("documentsImported", getDocumentsImported());
+		metrics.put("bytesImported", getBytesImported());
+		metrics.put("documentsFailed", getDocumentsFailed());
+		metrics.put("documentsSkipped", getDocumentsSkipped());
+		metrics.put("retries", getRetries());
+		metrics.put("readRate", getReadRate());
+		metrics.put("importRate", getImportRate());
+		metrics.put("importByteRate", getImportByteRate());
+		metrics.put("latencyP50", getLatencyP50());
+		metrics.put("latencyP99", getLatencyP99());
+		metrics.put("latencyP999", getLatencyP999());
+		metrics.put("latencyMax", getLatencyMax());
+		metrics.put("inFlight", getInFlight());
+		metrics.put("concurrencyLimit", getConcurrencyLimit());
+		metrics.put("waiting", getWaiting());
+		metrics.put("pending", getPending());
+		metrics.put("journalPending", getJournalPending());
+		return metrics;
+	}
+
+	@ManagedAttribute(description = "Documents read from the source")
+	public long getDocumentsRead() {
+		return documentsRead.sum();
+	}
+
+	@ManagedAttribute(description = "Bytes read from the source")
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@ManagedAttribute(description = "Documents successfully upserted")
+	public long getDocumentsImported() {
+		return documentsImported.sum();
+	}
+
+	@ManagedAttribute(description = "Bytes successfully upserted")
+	public long getBytesImported() {
+		return bytesImported.sum();
+	}
+
+	@ManagedAttribute(description = "Documents that could not be upserted")
+	public long getDocumentsFailed() {
+		return documentsFailed.sum();
+	}
+
+	@ManagedAttribute(description = "Documents not upserted as they did not change")
+	public long getDocumentsSkipped() {
+		return documentsSkipped.sum();
+	}
+
+	@ManagedAttribute(description = "Retries by exception")
+	public Map<String, Long> getRetries() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		retries.forEach((type, count) -> counts.put(type, count.sum()));
+		return counts;
+	}
+
+	@ManagedAttribute(description = "Documents read per second during the last interval")
+	public double getReadRate() {
+		return readRate;
+	}
+
+	@ManagedAttribute(description = "Documents upserted per second during the last interval")
+	public double getImportRate() {
+		return importRate;
+	}
+
+	@ManagedAttribute(description = "Bytes upserted per second during the last interval")
+	public double getImportByteRate() {
+		return importByteRate;
+	}
+
+	@ManagedAttribute(description = "Median upsert latency in ms during the last interval")
+	public double getLatencyP50() {
+		return latencyPercentiles[0];
+	}
+
+	@ManagedAttribute(description = "99th percentile upsert latency in ms during the last interval")
+	public double getLatencyP99() {
+		return latencyPercentiles[1];
+	}
+
+	@ManagedAttribute(description = "99.9th percentile upsert latency in ms during the last interval")
+	public double getLatencyP999() {
+		return latencyPercentiles[2];
+	}
+
+	@ManagedAttribute(description = "Maximum upsert latency in ms during the last interval")
+	public double getLatencyMax() {
+		return latencyPercentiles[3];
+	}
+
+	@ManagedAttribute(description = "99th percentile upsert latency in ms since the start")
+	public synchronized double getTotalLatencyP99() {
+		return toMillis(totalLatencies.getValueAtPercentile(99));
+	}
+
+	@ManagedAttribute(description = "Upserts waiting for an acknowledgement")
+	public int getInFlight() {
+		return throughputController.getInFlight();
+	}
+
+	@ManagedAttribute(description = "Current maximum number of concurrent upserts")
+	public int getConcurrencyLimit() {
+		return throughputController.getLimit();
+	}
+
+	@ManagedAttribute(description = "Upserts waiting for a slot in the concurrency window")
+	public int getWaiting() {
+		return throughputController.getWaiting();
+	}
+
+	@ManagedAttribute(description = "Documents read but not imported or failed yet")
+	public long getPending() {
+		return documentsRead.sum() - documentsImported.sum()
+				- documentsFailed.sum() - documentsSkipped.sum();
+	}
+
+	@ManagedAttribute(description = "Keys waiting to be written to the success and error logs")
+	public int getJournalPending() {
+		int pending = 0;
+		for (KeyJournal journal : journals) {
+			pending += journal.getPendingCount();
+		}
+		return pending;
+	}
+}
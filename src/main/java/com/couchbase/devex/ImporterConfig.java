@@ -24,6 +24,11 @@ import rx.Observable;
  */
 public interface ImporterConfig {
 
+	/**
+	 * Documents to import. Sources doing blocking reads subscribe on their
+	 * own scheduler: more documents are requested by the threads completing
+	 * upserts, which must not block on the source.
+	 */
 	Observable<Document> startImport() throws Exception;
 
 }
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Array;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Write the value of a column as JSON, reading it with the most specific
+ * {@link ResultSet} getter for its SQL type. The extractor of each column is
+ * resolved once per query with {@link #forColumn(int, ResultSetMetaData, int)},
+ * so mapping a row does not involve any type lookup or boxing of primitive
+ * values. Values are written as they would be from {@link ResultSet#getObject}:
+ * unsigned integers keep their full range and REAL columns their single
+ * precision.
+ *
+ * @author ldoguin
+ */
+public enum JDBCColumnExtractor {
+
+	INT {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			int value = rs.getInt(index);
+			if (rs.wasNull()) {
+				gen.writeNull();
+			} else {
+				gen.writeNumber(value);
+			}
+		}
+	},
+
+	LONG {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			long value = rs.getLong(index);
+			if (rs.wasNull()) {
+				gen.writeNull();
+			} else {
+				gen.writeNumber(value);
+			}
+		}
+	},
+
+	/** BIGINT UNSIGNED, beyond the range of a long. */
+	UNSIGNED_LONG {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			BigDecimal value = rs.getBigDecimal(index);
+			if (value == null) {
+				gen.writeNull();
+			} else {
+				gen.writeNumber(value.toBigInteger());
+			}
+		}
+	},
+
+	FLOAT {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			float value = rs.getFloat(index);
+			if (rs.wasNull()) {
+				gen.writeNull();
+			} else {
+				gen.writeNumber(value);
+			}
+		}
+	},
+
+	DOUBLE {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			double value = rs.getDouble(index);
+			if (rs.wasNull()) {
+				gen.writeNull();
+			} else {
+				gen.writeNumber(value);
+			}
+		}
+	},
+
+	BOOLEAN {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			boolean value = rs.getBoolean(index);
+			if (rs.wasNull()) {
+				gen.writeNull();
+			} else {
+				gen.writeBoolean(value);
+			}
+		}
+	},
+
+	STRING {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			String value = rs.getString(index);
+			if (value == null) {
+				gen.writeNull();
+			} else {
+				gen.writeString(value);
+			}
+		}
+	},
+
+	TIMESTAMP {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			Timestamp value = rs.getTimestamp(index);
+			if (value == null) {
+				gen.writeNull();
+			} else {
+				gen.writeNumber(value.getTime());
+			}
+		}
+	},
+
+	TIMESTAMP_WITH_TIMEZONE {
+		@SuppressWarnings("deprecation")
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			Timestamp value = rs.getTimestamp(index);
+			if (value == null) {
+				gen.writeNull();
+			} else {
+				gen.writeStartObject();
+				gen.writeNumberField("timestamp", value.getTime());
+				gen.writeNumberField("timezone", value.getTimezoneOffset());
+				gen.writeEndObject();
+			}
+		}
+	},
+
+	DATE {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			Date value = rs.getDate(index);
+			if (value == null) {
+				gen.writeNull();
+			} else {
+				gen.writeNumber(value.getTime());
+			}
+		}
+	},
+
+	TIME {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			Time value = rs.getTime(index);
+			if (value == null) {
+				gen.writeNull();
+			} else {
+				gen.writeNumber(value.getTime());
+			}
+		}
+	},
+
+	ARRAY {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			Array value = rs.getArray(index);
+			if (value == null) {
+				gen.writeNull();
+				return;
+			}
+			gen.writeStartArray();
+			for (Object element : (Object[]) value.getArray()) {
+				writeObject(element, gen);
+			}
+			gen.writeEndArray();
+			value.free();
+		}
+	},
+
+	BINARY {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			byte[] value = rs.getBytes(index);
+			if (value == null) {
+				gen.writeNull();
+			} else {
+				// standard Base64, no line feeds
+				gen.writeBinary(value);
+			}
+		}
+	},
+
+	/** Database specific types, default to their String value. */
+	OTHER {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			Object value = rs.getObject(index);
+			if (value == null) {
+				gen.writeNull();
+			} else {
+				gen.writeString(value.toString());
+			}
+		}
+	},
+
+	OBJECT {
+		@Override
+		public void write(ResultSet rs, int index, JsonGenerator gen)
+				throws SQLException, IOException {
+			writeObject(rs.getObject(index), gen);
+		}
+	};
+
+	public abstract void write(ResultSet rs, int index, JsonGenerator gen)
+			throws SQLException, IOException;
+
+	/**
+	 * Extractor of a column of the given SQL type. Unsigned BIGINT and BIT
+	 * columns need the metadata of the result, see
+	 * {@link #forColumn(int, ResultSetMetaData, int)}.
+	 */
+	public static JDBCColumnExtractor forType(int sqlType) {
+		switch (sqlType) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+			return INT;
+		case Types.INTEGER:
+			// INT UNSIGNED does not fit in an int
+		case Types.BIGINT:
+			return LONG;
+		case Types.REAL:
+			return FLOAT;
+		case Types.FLOAT:
+		case Types.DOUBLE:
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			return DOUBLE;
+		case Types.BIT:
+		case Types.BOOLEAN:
+			return BOOLEAN;
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.LONGVARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+		case Types.LONGNVARCHAR:
+		case Types.CLOB:
+		case Types.NCLOB:
+			return STRING;
+		case Types.TIMESTAMP:
+			return TIMESTAMP;
+		case Types.TIMESTAMP_WITH_TIMEZONE:
+			return TIMESTAMP_WITH_TIMEZONE;
+		case Types.DATE:
+			return DATE;
+		case Types.TIME:
+			return TIME;
+		case Types.ARRAY:
+			return ARRAY;
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+		case Types.BLOB:
+			return BINARY;
+		case Types.OTHER:
+		case Types.JAVA_OBJECT:
+			return OTHER;
+		default:
+			return OBJECT;
+		}
+	}
+
+	/**
+	 * Extractor of the given column of a result, of the given SQL type.
+	 * Unsigned BIGINT columns are read as BigDecimal, and only BIT(1) columns
+	 * are booleans, wider BIT columns being written as their Object value.
+	 */
+	public static JDBCColumnExtractor forColumn(int sqlType,
+			ResultSetMetaData metaData, int column) throws SQLException {
+		switch (sqlType) {
+		case Types.BIGINT:
+			return metaData.isSigned(column) ? LONG : UNSIGNED_LONG;
+		case Types.BIT:
+			return metaData.getPrecision(column) > 1 ? OBJECT : BOOLEAN;
+		default:
+			return forType(sqlType);
+		}
+	}
+
+	static void writeObject(Object value, JsonGenerator gen) throws IOException {
+		if (value == null) {
+			gen.writeNull();
+		} else if (value instanceof String) {
+			gen.writeString((String) value);
+		} else if (value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) {
+			gen.writeNumber(((Number) value).intValue());
+		} else if (value instanceof Long) {
+			gen.writeNumber((Long) value);
+		} else if (value instanceof BigDecimal) {
+			gen.writeNumber(((BigDecimal) value).doubleValue());
+		} else if (value instanceof BigInteger) {
+			gen.writeNumber((BigInteger) value);
+		} else if (value instanceof Float) {
+			gen.writeNumber((Float) value);
+		} else if (value instanceof Number) {
+			gen.writeNumber(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			gen.writeBoolean((Boolean) value);
+		} else if (value instanceof java.util.Date) {
+			gen.writeNumber(((java.util.Date) value).getTime());
+		} else if (value instanceof byte[]) {
+			gen.writeBinary((byte[]) value);
+		} else {
+			gen.writeString(value.toString());
+		}
+	}
+}
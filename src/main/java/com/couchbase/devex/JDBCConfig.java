@@ -15,19 +15,29 @@
  */
 package com.couchbase.devex;
 
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.sql.Array;
 import java.sql.DatabaseMetaData;
 import java.sql.Date;
-import java.sql.JDBCType;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,14 +46,23 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SqlParameterValue;
 
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.io.SerializedString;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
 import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.document.JsonDocument;
 import com.couchbase.client.java.document.json.JsonArray;
 import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.transcoder.TranscoderUtils;
 
 import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
 
 /**
  * Created by ldoguin on 17/08/15.
@@ -58,15 +77,155 @@ public class JDBCConfig implements ImporterConfig {
 
 	public static final String SELECT_EVERYTHING_FROM_TABLE_QUERY = "Select * from %s;";
 
+	public static final String SELECT_FROM_TABLE_QUERY = "Select * from %s%s%s;";
+
+	public static final String WHERE_CLAUSE = " where ";
+
+	public static final String ORDER_BY_CLAUSE = " order by %s";
+
+	public static final String COUNT_TABLE_QUERY = "Select count(*) from %s;";
+
+	public static final String SELECT_KEYS_QUERY = "Select %2$s from %1$s order by %2$s;";
+
+	public static final String SELECT_MIN_MAX_QUERY = "Select min(%2$s), max(%2$s) from %1$s;";
+
+	public static final String SELECT_MAX_QUERY = "Select max(%2$s) from %1$s;";
+
+	public static final String COUNT_NULL_QUERY = "Select count(*) from %1$s where %2$s is null;";
+
+	/** Prefix of the checkpoint stream of each table or primary key range. */
+	public static final String CHECKPOINT_STREAM = "jdbc:";
+
+	/**
+	 * Prefix of the high water mark of each table, and of the checkpoint
+	 * stream keeping the upper mark of an interrupted incremental run.
+	 */
+	public static final String HIGH_WATER_MARK_STREAM = "jdbc-mark:";
+
 	@Autowired
 	JdbcTemplate jdbcTemplate;
 
+	@Autowired
+	Checkpoints checkpoints;
+
+	@Autowired
+	HighWaterMarks highWaterMarks;
+
 	private String tablesSchemaId = "myDatabaseSchema";
 	private String catalog = null;
 	private String schemaPattern = "public";
 	private String tableNamePattern = null;
 	private String[] types = null;
 	private String columnNamePattern = null;
+	private boolean streaming = true;
+	private int fetchSize = 1000;
+	private int maxConcurrentTables = 4;
+	private int defaultPartitions = 1;
+	private Map<String, Integer> partitions = new HashMap<String, Integer>();
+	private int scanThreads = Runtime.getRuntime().availableProcessors();
+	private int binaryDocumentThreshold = 0;
+	private String defaultHighWaterMarkColumn = null;
+	private Map<String, String> highWaterMarkColumns = new HashMap<String, String>();
+	private List<Embedding> embeddings = new ArrayList<Embedding>();
+	private String defaultKeyTemplate = JDBCKeyTemplate.DEFAULT_TEMPLATE;
+	private Map<String, String> keyTemplates = new HashMap<String, String>();
+	private Scheduler scanScheduler;
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	public int getMaxConcurrentTables() {
+		return maxConcurrentTables;
+	}
+
+	public void setMaxConcurrentTables(int maxConcurrentTables) {
+		this.maxConcurrentTables = maxConcurrentTables;
+	}
+
+	public int getDefaultPartitions() {
+		return defaultPartitions;
+	}
+
+	public void setDefaultPartitions(int defaultPartitions) {
+		this.defaultPartitions = defaultPartitions;
+	}
+
+	public Map<String, Integer> getPartitions() {
+		return partitions;
+	}
+
+	public int getBinaryDocumentThreshold() {
+		return binaryDocumentThreshold;
+	}
+
+	public void setBinaryDocumentThreshold(int binaryDocumentThreshold) {
+		this.binaryDocumentThreshold = binaryDocumentThreshold;
+	}
+
+	public String getDefaultHighWaterMarkColumn() {
+		return defaultHighWaterMarkColumn;
+	}
+
+	public void setDefaultHighWaterMarkColumn(String defaultHighWaterMarkColumn) {
+		this.defaultHighWaterMarkColumn = defaultHighWaterMarkColumn;
+	}
+
+	public Map<String, String> getHighWaterMarkColumns() {
+		return highWaterMarkColumns;
+	}
+
+	public List<Embedding> getEmbeddings() {
+		return embeddings;
+	}
+
+	public String getDefaultKeyTemplate() {
+		return defaultKeyTemplate;
+	}
+
+	public void setDefaultKeyTemplate(String defaultKeyTemplate) {
+		this.defaultKeyTemplate = defaultKeyTemplate;
+	}
+
+	public Map<String, String> getKeyTemplates() {
+		return keyTemplates;
+	}
+
+	public String getKeyTemplate(String tableName) {
+		return keyTemplates.getOrDefault(tableName, defaultKeyTemplate);
+	}
+
+	public int getScanThreads() {
+		return scanThreads;
+	}
+
+	public void setScanThreads(int scanThreads) {
+		this.scanThreads = scanThreads;
+	}
+
+	private synchronized Scheduler getScanScheduler() {
+		if (scanScheduler == null) {
+			AtomicInteger threadCount = new AtomicInteger();
+			scanScheduler = Schedulers.from(Executors.newFixedThreadPool(scanThreads, r -> {
+				Thread t = new Thread(r, "jdbc-scan-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}));
+		}
+		return scanScheduler;
+	}
 
 	@Override
 	public Observable<Document> startImport() throws Exception {
@@ -94,33 +253,674 @@ public class JDBCConfig implements ImporterConfig {
 				String columnName = result.getString(4);
 				// Maps to JDBCType enum
 				int columnType = result.getInt(5);
-				table.addColumn(columnName, columnType);
+				table.addColumn(columnName, columnType, result.getInt(11) != DatabaseMetaData.columnNoNulls);
 			}
+			// rows are sorted by column name, not by position in the key
+			Map<Short, String> primaryKey = new TreeMap<Short, String>();
 			result = databaseMetadata.getPrimaryKeys(catalog, schemaPattern, tableName);
 			while (result.next()) {
-				String columnName = result.getString(4);
-				table.setPrimaryKey(columnName);
+				primaryKey.put(result.getShort(5), result.getString(4));
+			}
+			table.setPrimaryKey(new ArrayList<String>(primaryKey.values()));
+			if (primaryKey.isEmpty()) {
+				table.setUniqueKey(findUniqueKey(databaseMetadata, table));
 			}
 			tables.put(tableName, table);
-			tablesSchema.put(tableName, table.toJsonObject());
+		}
+		Set<String> embeddedTables = resolveEmbeddings(databaseMetadata, tables);
+		for (String tableName : tableNames) {
+			tablesSchema.put(tableName, tables.get(tableName).toJsonObject());
 		}
 		JsonDocument schemaDoc = JsonDocument.create(tablesSchemaId, tablesSchema);
 		log.debug(tablesSchema);
 		// FlatMap each table to an Observable of JsonDocument, one
-		// JsonDocument per table row.
-		return Observable.from(tableNames).flatMap(s -> {
-			String sql = String.format(SELECT_EVERYTHING_FROM_TABLE_QUERY, s);
-			return Observable.from(jdbcTemplate.query(sql, new JSONRowMapper(tables.get(s))));
-		})
+		// JsonDocument per table row. Embedded tables are only read with
+		// their parent table.
+		return Observable.from(tableNames).filter(s -> !embeddedTables.contains(s))
+				.flatMap(s -> importTable(tables.get(s)), maxConcurrentTables)
 		// start by a jsonDocument containing the tables to be imported.
 		.startWith(schemaDoc);
 	}
 
 	/**
-	 * Map the {@link ResultSet} to a {@link JsonDocument} using the given
-	 * {@link Table} definition. Most of the logic is in
-	 * {@link JSONRowMapper#getJsonTypedValue(int, Object, String)} that returns
-	 * an appropriate JSON type for a {@link JDBCType}.
+	 * Columns of the smallest unique index of a table without primary key
+	 * whose columns are all not nullable, empty if there is none.
+	 */
+	List<String> findUniqueKey(DatabaseMetaData databaseMetadata, Table table) throws SQLException {
+		Map<String, Map<Short, String>> indexes = new TreeMap<String, Map<Short, String>>();
+		ResultSet result = databaseMetadata.getIndexInfo(catalog, schemaPattern, table.getName(), true, true);
+		while (result.next()) {
+			String indexName = result.getString(6);
+			String columnName = result.getString(9);
+			// skip table statistics
+			if (indexName != null && columnName != null) {
+				indexes.computeIfAbsent(indexName, k -> new TreeMap<Short, String>()).put(result.getShort(8),
+						columnName);
+			}
+		}
+		List<String> uniqueKey = Collections.emptyList();
+		for (Map<Short, String> index : indexes.values()) {
+			List<String> columns = new ArrayList<String>(index.values());
+			if ((uniqueKey.isEmpty() || columns.size() < uniqueKey.size()) && !table.hasNullableColumn(columns)) {
+				uniqueKey = columns;
+			}
+		}
+		return uniqueKey;
+	}
+
+	/**
+	 * Add the configured embeddings to their parent {@link Table}. The
+	 * foreign key of the child table referencing the primary key of the
+	 * parent is read from the database metadata, unless it is configured.
+	 * Returns the names of the child tables not to be imported on their own.
+	 */
+	Set<String> resolveEmbeddings(DatabaseMetaData databaseMetadata, Map<String, Table> tables) throws SQLException {
+		Set<String> embeddedTables = new HashSet<String>();
+		for (Embedding embedding : embeddings) {
+			Table parent = findTable(tables, embedding.getParent());
+			Table child = findTable(tables, embedding.getTable());
+			if (parent == null || child == null) {
+				log.warn(String.format("Cannot embed %s into %s, both tables must be imported.", embedding.getTable(),
+						embedding.getParent()));
+				continue;
+			}
+			if (parent.getKeyColumns().size() != 1) {
+				log.warn(String.format("Cannot embed %s into %s, it has no single column primary key.",
+						child.getName(), parent.getName()));
+				continue;
+			}
+			String foreignKey = findForeignKey(databaseMetadata, parent, child, embedding.getForeignKey());
+			if (foreignKey == null) {
+				continue;
+			}
+			String field = embedding.getField() == null ? child.getName() : embedding.getField();
+			parent.addEmbedded(child, field, foreignKey);
+			if (!embedding.isImportTable()) {
+				embeddedTables.add(child.getName());
+			}
+			log.info(String.format("Embedding rows of %s into %s as %s, joined on %s.", child.getName(),
+					parent.getName(), field, foreignKey));
+		}
+		return embeddedTables;
+	}
+
+	private Table findTable(Map<String, Table> tables, String name) {
+		for (Table table : tables.values()) {
+			if (table.getName().equalsIgnoreCase(name)) {
+				return table;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the single column foreign key of child referencing the primary key
+	 * of parent. If a column is configured, it is used even if the database
+	 * does not declare it as a foreign key.
+	 */
+	String findForeignKey(DatabaseMetaData databaseMetadata, Table parent, Table child, String column)
+			throws SQLException {
+		if (column != null) {
+			for (Column c : child.getColumns()) {
+				if (c.getName().equalsIgnoreCase(column)) {
+					return c.getName();
+				}
+			}
+			log.warn(String.format("Cannot embed %s into %s, it has no column %s.", child.getName(), parent.getName(),
+					column));
+			return null;
+		}
+		Map<String, List<String>> foreignKeys = new HashMap<String, List<String>>();
+		Set<String> candidates = new HashSet<String>();
+		ResultSet result = databaseMetadata.getImportedKeys(catalog, schemaPattern, child.getName());
+		while (result.next()) {
+			if (!parent.getName().equals(result.getString(3))) {
+				continue;
+			}
+			// columns of composite keys are grouped by key name
+			String name = result.getString(12) == null ? result.getString(8) : result.getString(12);
+			foreignKeys.computeIfAbsent(name, k -> new ArrayList<String>()).add(result.getString(8));
+			if (parent.getKeyColumns().get(0).equals(result.getString(4))) {
+				candidates.add(result.getString(8));
+			}
+		}
+		for (List<String> foreignKey : foreignKeys.values()) {
+			if (foreignKey.size() > 1) {
+				candidates.removeAll(foreignKey);
+			}
+		}
+		if (candidates.size() != 1) {
+			log.warn(String.format("Cannot embed %s into %s, found %d foreign keys referencing %s, set foreignKey.",
+					child.getName(), parent.getName(), candidates.size(), parent.getKeyColumns().get(0)));
+			return null;
+		}
+		return candidates.iterator().next();
+	}
+
+	public int getPartitionCount(String tableName) {
+		return partitions.getOrDefault(tableName, defaultPartitions);
+	}
+
+	/**
+	 * Read the given table. If more than one partition is configured for it,
+	 * the table is split in ranges of its first key column of about the same
+	 * number of rows, each range being read by its own query. If the table
+	 * has a high water mark column, only the rows changed since the previous
+	 * run are read.
+	 */
+	public Observable<Document> importTable(Table table) {
+		if (!selectChanges(table)) {
+			log.info(String.format("Table %s did not change since the previous run.", table.getName()));
+			return Observable.empty();
+		}
+		int partitionCount = getPartitionCount(table.getName());
+		List<Object> splitPoints = Collections.emptyList();
+		if (partitionCount > 1 && !table.getKeyColumns().isEmpty()) {
+			splitPoints = findSplitPoints(table, partitionCount);
+		}
+		if (splitPoints.isEmpty()) {
+			return queryRange(table, null, null);
+		}
+		List<Observable<Document>> ranges = new ArrayList<Observable<Document>>();
+		for (int i = 0; i <= splitPoints.size(); i++) {
+			Object lowerBound = i == 0 ? null : splitPoints.get(i - 1);
+			Object upperBound = i == splitPoints.size() ? null : splitPoints.get(i);
+			ranges.add(queryRange(table, lowerBound, upperBound));
+		}
+		log.info(String.format("Reading table %s in %d key ranges.", table.getName(), ranges.size()));
+		return Observable.merge(ranges);
+	}
+
+	/**
+	 * Read the rows of the given table with a first key column between
+	 * lowerBound included and upperBound excluded, null bounds being open.
+	 * When checkpoints are enabled rows are read in key order and the range
+	 * is resumed after the last key imported by the previous run.
+	 */
+	public Observable<Document> queryRange(Table table, Object lowerBound, Object upperBound) {
+		List<String> keyColumns = table.getKeyColumns();
+		List<String> conditions = new ArrayList<String>();
+		List<Object> parameters = new ArrayList<Object>();
+		if (table.getChangeFilter() != null) {
+			conditions.add(table.getChangeFilter());
+			parameters.addAll(Arrays.asList(table.getChangeParameters()));
+		}
+		if (keyColumns.isEmpty()) {
+			String sql = conditions.isEmpty() ? String.format(SELECT_EVERYTHING_FROM_TABLE_QUERY, table.getName())
+					: String.format(SELECT_FROM_TABLE_QUERY, table.getName(),
+							WHERE_CLAUSE + String.join(" and ", conditions), "");
+			return queryTable(sql, table, null, parameters.toArray());
+		}
+		CheckpointTracker tracker = checkpoints.tracker(CHECKPOINT_STREAM + table.getName()
+				+ (lowerBound == null ? "" : ">=" + lowerBound));
+		List<String> keyConditions = new ArrayList<String>();
+		List<Object> keyParameters = new ArrayList<Object>();
+		if (tracker.getResumePosition() != null) {
+			Object[] resumeKey = parseKey(table, tracker.getResumePosition());
+			if (resumeKey.length == 1) {
+				keyConditions.add(" > ?");
+				keyParameters.add(resumeKey[0]);
+			} else {
+				conditions.add(afterKeyCondition(keyColumns, resumeKey, parameters));
+			}
+		} else if (lowerBound != null) {
+			keyConditions.add(" >= ?");
+			keyParameters.add(lowerBound);
+		}
+		if (upperBound != null) {
+			keyConditions.add(" < ?");
+			keyParameters.add(upperBound);
+		}
+		for (String keyCondition : keyConditions) {
+			conditions.add(keyColumns.get(0) + keyCondition);
+		}
+		parameters.addAll(keyParameters);
+		boolean join = !table.getEmbedded().isEmpty();
+		String sql = String.format(SELECT_FROM_TABLE_QUERY, table.getName(),
+				conditions.isEmpty() ? "" : WHERE_CLAUSE + String.join(" and ", conditions),
+				checkpoints.isEnabled() || join ? String.format(ORDER_BY_CLAUSE, String.join(", ", keyColumns)) : "");
+		if (!join) {
+			return queryTable(sql, table, tracker, parameters.toArray());
+		}
+		// the rows of the embedded tables in the same key range, referencing
+		// a changed row when importing incrementally
+		List<String> childQueries = new ArrayList<String>();
+		List<Object> childParameters = new ArrayList<Object>();
+		if (table.getChangeFilter() != null) {
+			childParameters.addAll(Arrays.asList(table.getChangeParameters()));
+		}
+		childParameters.addAll(keyParameters);
+		for (Embedded embedded : table.getEmbedded()) {
+			String foreignKey = embedded.getForeignKey();
+			StringBuilder childConditions = new StringBuilder(foreignKey).append(" is not null");
+			if (table.getChangeFilter() != null) {
+				childConditions.append(" and ").append(foreignKey).append(" in (select ")
+						.append(keyColumns.get(0)).append(" from ").append(table.getName()).append(WHERE_CLAUSE)
+						.append(table.getChangeFilter()).append(")");
+			}
+			for (String keyCondition : keyConditions) {
+				childConditions.append(" and ").append(foreignKey).append(keyCondition);
+			}
+			childQueries.add(String.format(SELECT_FROM_TABLE_QUERY, embedded.getTable().getName(),
+					WHERE_CLAUSE + childConditions, String.format(ORDER_BY_CLAUSE, foreignKey)));
+		}
+		return joinTable(sql, table, tracker, parameters.toArray(), childQueries, childParameters.toArray());
+	}
+
+	/**
+	 * Find the high water mark column of the given table, if any, and the
+	 * range of marks to read: after the mark saved by the previous complete
+	 * run, up to the current maximum value. The upper mark is kept in the
+	 * checkpoint, so a resumed run reads the same range. The mark is saved by
+	 * {@link HighWaterMarks#commit()} once the run completes. The first run
+	 * reads the rows without a mark too, later runs cannot see them change.
+	 * The rows of a table with embedded tables are also read when one of
+	 * their embedded rows changed, which requires a high water mark column in
+	 * every embedded table. Returns false if nothing changed since the
+	 * previous run.
+	 */
+	boolean selectChanges(Table table) {
+		String column = findHighWaterMarkColumn(table);
+		if (column == null) {
+			return true;
+		}
+		List<String> changes = new ArrayList<String>();
+		List<Object> parameters = new ArrayList<Object>();
+		boolean everyRow = !addChanges(table, column, HIGH_WATER_MARK_STREAM + table.getName(), null, changes,
+				parameters);
+		for (Embedded embedded : table.getEmbedded()) {
+			Table child = embedded.getTable();
+			String childColumn = findHighWaterMarkColumn(child);
+			if (childColumn == null) {
+				log.warn(String.format("Reading every row of table %s, %s has no high water mark column to detect "
+						+ "changes of the rows embedded in it.", table.getName(), child.getName()));
+				everyRow = true;
+				continue;
+			}
+			String changedParents = table.getKeyColumns().get(0) + " in (select " + embedded.getForeignKey()
+					+ " from " + child.getName() + WHERE_CLAUSE;
+			everyRow |= !addChanges(child, childColumn,
+					HIGH_WATER_MARK_STREAM + table.getName() + "/" + child.getName(), changedParents, changes,
+					parameters);
+		}
+		if (everyRow) {
+			return true;
+		} else if (changes.isEmpty()) {
+			return false;
+		}
+		table.setChangeFilter("(" + String.join(" or ", changes) + ")", parameters.toArray());
+		return true;
+	}
+
+	private String findHighWaterMarkColumn(Table table) {
+		String column = highWaterMarkColumns.get(table.getName());
+		if (column == null && defaultHighWaterMarkColumn != null) {
+			for (Column c : table.getColumns()) {
+				if (c.getName().equalsIgnoreCase(defaultHighWaterMarkColumn)) {
+					column = c.getName();
+				}
+			}
+		}
+		return column;
+	}
+
+	/**
+	 * Add to changes the condition selecting the rows of the given table
+	 * changed since the previous complete run, and its parameters to
+	 * parameters. If a subquery is given, the condition completes it. Nothing
+	 * is added if no row changed. Returns false if every row must be read, as
+	 * no row has a mark yet.
+	 */
+	private boolean addChanges(Table table, String column, String name, String subquery, List<String> changes,
+			List<Object> parameters) {
+		String from = highWaterMarks.get(name);
+		if (from != null) {
+			long nullMarks = jdbcTemplate.queryForObject(String.format(COUNT_NULL_QUERY, table.getName(), column),
+					Long.class);
+			if (nullMarks > 0) {
+				log.warn(String.format("Skipping %d rows of table %s without a value of %s.", nullMarks,
+						table.getName(), column));
+			}
+		}
+		Object max = jdbcTemplate.queryForObject(String.format(SELECT_MAX_QUERY, table.getName(), column), Object.class);
+		if (max == null) {
+			if (from != null) {
+				return true;
+			}
+			// empty table, or no row has a mark yet
+			log.info(String.format("Table %s has no value of %s, reading every row.", table.getName(), column));
+			return false;
+		}
+		String to = checkpoints.tracker(name, max).getResumePosition();
+		if (from != null && from.equals(to)) {
+			return true;
+		}
+		String condition;
+		if (from == null) {
+			// the first run also imports the rows without a mark
+			condition = "(" + column + " <= ? or " + column + " is null)";
+		} else {
+			condition = column + " > ? and " + column + " <= ?";
+			parameters.add(parseValue(table, column, from));
+		}
+		parameters.add(parseValue(table, column, to));
+		changes.add(subquery == null ? condition : subquery + condition + ")");
+		highWaterMarks.reach(name, to);
+		log.info(String.format("Reading rows of table %s with %s in (%s, %s].", table.getName(), column, from, to));
+		return true;
+	}
+
+	/**
+	 * Condition selecting the rows with a composite key greater than the
+	 * given one, written (a > ? or (a = ? and b > ?) ...) as not every
+	 * database supports row value comparisons. Its parameters are added to
+	 * the given list.
+	 */
+	String afterKeyCondition(List<String> keyColumns, Object[] key, List<Object> parameters) {
+		List<String> alternatives = new ArrayList<String>();
+		for (int i = 0; i < keyColumns.size(); i++) {
+			StringBuilder alternative = new StringBuilder("(");
+			for (int j = 0; j < i; j++) {
+				alternative.append(keyColumns.get(j)).append(" = ? and ");
+				parameters.add(key[j]);
+			}
+			alternatives.add(alternative.append(keyColumns.get(i)).append(" > ?)").toString());
+			parameters.add(key[i]);
+		}
+		return "(" + String.join(" or ", alternatives) + ")";
+	}
+
+	/**
+	 * Convert a key saved in a checkpoint back to the types of the key
+	 * columns.
+	 */
+	Object[] parseKey(Table table, String position) {
+		List<String> keyColumns = table.getKeyColumns();
+		if (keyColumns.size() == 1) {
+			return new Object[] { parseValue(table, keyColumns.get(0), position) };
+		}
+		List<String> values = decodeKey(position);
+		Object[] key = new Object[keyColumns.size()];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = parseValue(table, keyColumns.get(i), values.get(i));
+		}
+		return key;
+	}
+
+	/**
+	 * Checkpoint position of a composite key: its values separated by
+	 * commas, with commas and backslashes escaped by a backslash.
+	 */
+	static String encodeKey(ResultSet rs, int[] keyIndices) throws SQLException {
+		StringBuilder position = new StringBuilder();
+		for (int i = 0; i < keyIndices.length; i++) {
+			if (i > 0) {
+				position.append(',');
+			}
+			String value = rs.getString(keyIndices[i]);
+			for (int j = 0; j < value.length(); j++) {
+				char c = value.charAt(j);
+				if (c == ',' || c == '\\') {
+					position.append('\\');
+				}
+				position.append(c);
+			}
+		}
+		return position.toString();
+	}
+
+	static List<String> decodeKey(String position) {
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < position.length(); i++) {
+			char c = position.charAt(i);
+			if (c == '\\' && i + 1 < position.length()) {
+				value.append(position.charAt(++i));
+			} else if (c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+
+	/**
+	 * Convert a value saved as a String back to the type of the given column.
+	 * Values of other types, like UUID, are bound with the SQL type of the
+	 * column, so that the database converts them instead of comparing them to
+	 * a character string.
+	 */
+	Object parseValue(Table table, String columnName, String key) {
+		for (Column column : table.getColumns()) {
+			if (!column.getName().equals(columnName)) {
+				continue;
+			}
+			switch (column.getType()) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return Long.valueOf(key);
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				return new BigDecimal(key);
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return Double.valueOf(key);
+			case Types.DATE:
+				return Date.valueOf(key);
+			case Types.TIMESTAMP:
+				return Timestamp.valueOf(key);
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+			case Types.LONGNVARCHAR:
+				// some drivers report UUID as binary, keep their String value
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+				return key;
+			default:
+				return new SqlParameterValue(column.getType(), key);
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Find the values of the first key column splitting the table in
+	 * partitionCount ranges. Numeric keys are split in ranges of the same
+	 * width between their minimum and maximum, read from the ends of the
+	 * index. Other keys are split in ranges of about the same number of rows.
+	 * Rows of a composite key sharing the same first column value stay in the
+	 * same range.
+	 */
+	List<Object> findSplitPoints(Table table, int partitionCount) {
+		String keyColumn = table.getKeyColumns().get(0);
+		switch (table.getColumn(keyColumn).getType()) {
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return interpolateSplitPoints(table, keyColumn, partitionCount);
+		default:
+			return countSplitPoints(table, keyColumn, partitionCount);
+		}
+	}
+
+	/**
+	 * Split points of a numeric key column, at the same distance from each
+	 * other between its minimum and maximum values. Integer keys are split
+	 * on integers.
+	 */
+	List<Object> interpolateSplitPoints(Table table, String keyColumn, int partitionCount) {
+		BigDecimal[] bounds = jdbcTemplate.queryForObject(
+				String.format(SELECT_MIN_MAX_QUERY, table.getName(), keyColumn),
+				(rs, rowNum) -> new BigDecimal[] { rs.getBigDecimal(1), rs.getBigDecimal(2) });
+		List<Object> splitPoints = new ArrayList<Object>();
+		if (bounds[0] == null) {
+			// empty table
+			return splitPoints;
+		}
+		boolean integral = bounds[0].scale() <= 0 && bounds[1].scale() <= 0;
+		BigDecimal width = bounds[1].subtract(bounds[0]);
+		BigDecimal previous = bounds[0];
+		for (int i = 1; i < partitionCount; i++) {
+			BigDecimal splitPoint = bounds[0].add(width.multiply(BigDecimal.valueOf(i)).divide(
+					BigDecimal.valueOf(partitionCount), integral ? 0 : 10, BigDecimal.ROUND_FLOOR));
+			if (splitPoint.compareTo(previous) > 0) {
+				splitPoints.add(integral && splitPoint.toBigInteger().bitLength() < 64 ? (Object) splitPoint.longValueExact()
+						: splitPoint.stripTrailingZeros());
+				previous = splitPoint;
+			}
+		}
+		return splitPoints;
+	}
+
+	/**
+	 * Split points of any orderable key column, splitting the table in ranges
+	 * of about the same number of rows. The keys are read in order by a
+	 * single forward only query, stopping at the last split point.
+	 */
+	List<Object> countSplitPoints(Table table, String keyColumn, int partitionCount) {
+		long count = jdbcTemplate.queryForObject(String.format(COUNT_TABLE_QUERY, table.getName()), Long.class);
+		List<Long> offsets = new ArrayList<Long>();
+		for (int i = 1; i < partitionCount; i++) {
+			long offset = count * i / partitionCount;
+			if (offset > 0 && (offsets.isEmpty() || offset > offsets.get(offsets.size() - 1))) {
+				offsets.add(offset);
+			}
+		}
+		List<Object> splitPoints = new ArrayList<Object>();
+		if (offsets.isEmpty()) {
+			return splitPoints;
+		}
+		JdbcTemplate keyTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+		keyTemplate.setFetchSize(fetchSize);
+		long lastOffset = offsets.get(offsets.size() - 1);
+		// stop the scan at the last split point where maxRows fits an int
+		keyTemplate.setMaxRows(lastOffset < Integer.MAX_VALUE ? (int) lastOffset + 1 : 0);
+		keyTemplate.query(String.format(SELECT_KEYS_QUERY, table.getName(), keyColumn), rs -> {
+			Iterator<Long> next = offsets.iterator();
+			long offset = next.next();
+			long row = 0;
+			while (rs.next()) {
+				if (row++ < offset) {
+					continue;
+				}
+				Object splitPoint = rs.getObject(1);
+				if (splitPoints.isEmpty() || !splitPoint.equals(splitPoints.get(splitPoints.size() - 1))) {
+					splitPoints.add(splitPoint);
+				}
+				if (!next.hasNext()) {
+					break;
+				}
+				offset = next.next();
+			}
+			return null;
+		});
+		return splitPoints;
+	}
+
+	/**
+	 * Run the given query and map each row to a {@link Document}. When
+	 * streaming is enabled rows are read through a {@link JDBCRowIterator}
+	 * cursor as the upsert pipeline requests them, on one of the scanThreads
+	 * threads. Otherwise the whole result is loaded in memory first. Documents
+	 * are tracked by the given tracker, if any. The binary documents of a row
+	 * are emitted right before it.
+	 */
+	public Observable<Document> queryTable(String sql, Table table, CheckpointTracker tracker, Object... parameters) {
+		JSONRowMapper rowMapper = new JSONRowMapper(table, tracker);
+		if (!streaming) {
+			return Observable.defer(() -> Observable.from(jdbcTemplate.query(sql, parameters,
+					(ResultSetExtractor<List<Document>>) rowMapper::mapRows))).subscribeOn(getScanScheduler());
+		}
+		return Observable.using(() -> {
+			try {
+				return new JDBCRowIterator<Document>(jdbcTemplate.getDataSource(), sql, fetchSize, rowMapper,
+						parameters);
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+		}, rows -> Observable.from(() -> rowMapper.withBinaryDocuments(rows)), JDBCRowIterator::close)
+				.subscribeOn(getScanScheduler());
+	}
+
+	/**
+	 * Run the given query, sorted by primary key, and the queries of the
+	 * embedded tables, sorted by foreign key, and merge join them: each row is
+	 * mapped to a {@link Document} containing the rows of the embedded tables
+	 * referencing it. All the tables are read through {@link JDBCRowIterator}
+	 * cursors, whatever the streaming setting, so only the current rows are in
+	 * memory.
+	 */
+	public Observable<Document> joinTable(String sql, Table table, CheckpointTracker tracker, Object[] parameters,
+			List<String> childQueries, Object[] childParameters) {
+		JSONRowMapper rowMapper = new JSONRowMapper(table, tracker);
+		return Observable.using(() -> {
+			try {
+				rowMapper.openEmbedded(childQueries, childParameters);
+				return new JDBCRowIterator<Document>(jdbcTemplate.getDataSource(), sql, fetchSize, rowMapper,
+						parameters);
+			} catch (SQLException e) {
+				rowMapper.closeEmbedded();
+				throw new RuntimeException(e);
+			}
+		}, rows -> Observable.from(() -> rowMapper.withBinaryDocuments(rows)), rows -> {
+			rows.close();
+			rowMapper.closeEmbedded();
+		}).subscribeOn(getScanScheduler());
+	}
+
+	/**
+	 * Compare two key values read from the database: numbers by value,
+	 * whatever their class, dates by time and other values by their natural
+	 * order.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compareKeys(Object a, Object b) {
+		if (a instanceof Number && b instanceof Number) {
+			if (isIntegral(a) && isIntegral(b)) {
+				return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+			}
+			return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+		}
+		if (a instanceof java.util.Date && b instanceof java.util.Date) {
+			return ((java.util.Date) a).compareTo((java.util.Date) b);
+		}
+		if (a instanceof Comparable && a.getClass() == b.getClass()) {
+			return ((Comparable) a).compareTo(b);
+		}
+		return a.toString().compareTo(b.toString());
+	}
+
+	private static boolean isIntegral(Object number) {
+		return number instanceof Integer || number instanceof Long || number instanceof Short
+				|| number instanceof Byte;
+	}
+
+	/**
+	 * Map the {@link ResultSet} to a {@link ByteBufJsonDocument} using the
+	 * given {@link Table} definition. Column indices and their
+	 * {@link JDBCColumnExtractor} are resolved once, on the first row. Each row
+	 * is then written by the same {@link JsonDocumentWriter}, and keyed by the
+	 * {@link JDBCKeyTemplate} of the table. If
+	 * binaryDocumentThreshold is set, binary values of at least that many bytes
+	 * are stored as separate binary documents, keyed by the key of the row and
+	 * the column name, and referenced from the row document. The rows of the
+	 * embedded tables are written in an array after the columns.
 	 * 
 	 * @author ldoguin
 	 *
@@ -128,56 +928,285 @@ public class JDBCConfig implements ImporterConfig {
 	public class JSONRowMapper implements RowMapper<Document> {
 		Table table;
 
-		public JSONRowMapper(Table table) {
+		private final JDBCKeyTemplate keyTemplate;
+
+		private final SerializedString[] fieldNames;
+
+		private final JDBCColumnExtractor[] extractors;
+
+		private final String[] binaryKeySuffixes;
+
+		private final Queue<Document> binaryDocuments = new ArrayDeque<Document>();
+
+		private int[] indices;
+
+		private int[] keyIndices;
+
+		private final JsonDocumentWriter documentWriter = new JsonDocumentWriter();
+
+		private final CheckpointTracker tracker;
+
+		private final List<EmbeddedRows> embeddedRows = new ArrayList<EmbeddedRows>();
+
+		public JSONRowMapper(Table table, CheckpointTracker tracker) {
 			this.table = table;
+			this.tracker = tracker;
+			List<Column> columns = table.getColumns();
+			List<String> columnNames = new ArrayList<String>();
+			for (Column column : columns) {
+				columnNames.add(column.getName());
+			}
+			this.keyTemplate = new JDBCKeyTemplate(getKeyTemplate(table.getName()), table.getName(), columnNames,
+					table.getKeyColumns());
+			fieldNames = new SerializedString[columns.size()];
+			extractors = new JDBCColumnExtractor[columns.size()];
+			binaryKeySuffixes = new String[columns.size()];
+			for (int i = 0; i < columns.size(); i++) {
+				fieldNames[i] = new SerializedString(columns.get(i).getName());
+				if (binaryDocumentThreshold > 0
+						&& JDBCColumnExtractor.forType(columns.get(i).getType()) == JDBCColumnExtractor.BINARY) {
+					binaryKeySuffixes[i] = "::" + columns.get(i).getName();
+				}
+			}
 		}
 
-		public JsonDocument mapRow(ResultSet rs, int rowNum) throws SQLException {
-			String id = table.getName() + "::" + rs.getString(table.getPrimaryKey());
-			JsonObject obj = JsonObject.create();
-			for (Column col : table.getColumns()) {
-				Object value = getJsonTypedValue(col.type, rs.getObject(col.name), col.name);
-				obj.put(col.name, value);
+		private void resolveIndices(ResultSet rs) throws SQLException {
+			List<Column> columns = table.getColumns();
+			indices = new int[columns.size()];
+			ResultSetMetaData metaData = rs.getMetaData();
+			for (int i = 0; i < columns.size(); i++) {
+				indices[i] = rs.findColumn(columns.get(i).getName());
+				extractors[i] = JDBCColumnExtractor.forColumn(columns.get(i).getType(), metaData, indices[i]);
+			}
+			List<String> keyColumns = table.getKeyColumns();
+			keyIndices = new int[keyColumns.size()];
+			for (int i = 0; i < keyIndices.length; i++) {
+				keyIndices[i] = rs.findColumn(keyColumns.get(i));
 			}
-			return JsonDocument.create(id, obj);
 		}
 
-		public Object getJsonTypedValue(int type, Object value, String name) throws SQLException {
+		public Document mapRow(ResultSet rs, int rowNum) throws SQLException {
+			if (indices == null) {
+				resolveIndices(rs);
+			}
+			// keys hashing the content are only known once the row is written
+			String id = keyTemplate.isContentHash() ? null : keyTemplate.build(rs, null);
+			try {
+				JsonGenerator generator = documentWriter.start();
+				generator.writeStartObject();
+				writeColumns(rs, id, generator);
+				if (!embeddedRows.isEmpty()) {
+					Object parentKey = rs.getObject(keyIndices[0]);
+					for (EmbeddedRows embedded : embeddedRows) {
+						embedded.write(parentKey, generator);
+					}
+				}
+				generator.writeEndObject();
+				ByteBuf content = documentWriter.finishContent();
+				Document document = ByteBufJsonDocument.create(id == null ? keyTemplate.build(rs, content) : id,
+						content);
+				if (tracker == null) {
+					return document;
+				}
+				return tracker.track(document,
+						keyIndices.length == 1 ? rs.getString(keyIndices[0]) : encodeKey(rs, keyIndices));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Write the columns of the current row as fields of the current object.
+		 * Without an id, as for embedded rows and rows keyed by a hash of their
+		 * content, binary values are always written inline.
+		 */
+		void writeColumns(ResultSet rs, String id, JsonGenerator generator) throws SQLException, IOException {
+			if (indices == null) {
+				resolveIndices(rs);
+			}
+			for (int i = 0; i < indices.length; i++) {
+				generator.writeFieldName(fieldNames[i]);
+				if (binaryKeySuffixes[i] != null && id != null) {
+					writeBinaryColumn(rs, i, id, generator);
+				} else {
+					extractors[i].write(rs, indices[i], generator);
+				}
+			}
+		}
+
+		/**
+		 * Open a cursor on the rows of each embedded table, with the given
+		 * queries and parameters.
+		 */
+		void openEmbedded(List<String> queries, Object[] parameters) throws SQLException {
+			List<Embedded> embedded = table.getEmbedded();
+			for (int i = 0; i < embedded.size(); i++) {
+				EmbeddedRows rows = new EmbeddedRows(embedded.get(i));
+				embeddedRows.add(rows);
+				rows.open(queries.get(i), parameters);
+			}
+		}
+
+		void closeEmbedded() {
+			embeddedRows.forEach(EmbeddedRows::close);
+		}
+
+		private void writeBinaryColumn(ResultSet rs, int i, String id, JsonGenerator generator)
+				throws SQLException, IOException {
+			byte[] value = rs.getBytes(indices[i]);
 			if (value == null) {
+				generator.writeNull();
+				return;
+			} else if (value.length < binaryDocumentThreshold) {
+				generator.writeBinary(value);
+				return;
+			}
+			String binaryId = id + binaryKeySuffixes[i];
+			Document binary = ByteBufBinaryDocument.create(binaryId, Unpooled.wrappedBuffer(value),
+					TranscoderUtils.BINARY_COMPAT_FLAGS);
+			// tied to the row document, which carries the position
+			binaryDocuments.add(tracker == null ? binary : tracker.track(binary, null));
+			generator.writeStartObject();
+			generator.writeStringField("binaryDocument", binaryId);
+			generator.writeNumberField("length", value.length);
+			generator.writeEndObject();
+		}
+
+		/**
+		 * Map every row of the given result, each row preceded by its binary
+		 * documents.
+		 */
+		public List<Document> mapRows(ResultSet rs) throws SQLException {
+			List<Document> documents = new ArrayList<Document>();
+			int rowNum = 0;
+			while (rs.next()) {
+				Document row = mapRow(rs, rowNum++);
+				documents.addAll(binaryDocuments);
+				binaryDocuments.clear();
+				documents.add(row);
+			}
+			return documents;
+		}
+
+		/**
+		 * Documents of the rows mapped by the given iterator, each row preceded
+		 * by its binary documents.
+		 */
+		public Iterator<Document> withBinaryDocuments(Iterator<Document> rows) {
+			if (binaryDocumentThreshold <= 0) {
+				return rows;
+			}
+			return new Iterator<Document>() {
+				private final Queue<Document> next = new ArrayDeque<Document>();
+
+				@Override
+				public boolean hasNext() {
+					return !next.isEmpty() || rows.hasNext();
+				}
+
+				@Override
+				public Document next() {
+					if (next.isEmpty()) {
+						Document row = rows.next();
+						next.addAll(binaryDocuments);
+						binaryDocuments.clear();
+						next.add(row);
+					}
+					return next.poll();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Cursor on the rows of an embedded table, sorted by foreign key. For
+	 * each row of the parent table, read in primary key order, the rows with
+	 * a lower foreign key are skipped, as they do not reference any row read,
+	 * and the rows with the same key are written in an array. Both sides must
+	 * be sorted by the database the same way {@link #compareKeys} compares
+	 * them, which is checked as the rows are read.
+	 */
+	class EmbeddedRows {
+
+		private final Embedded embedded;
+
+		private final SerializedString field;
+
+		private final JSONRowMapper rowMapper;
+
+		private JDBCRowIterator<Void> rows;
+
+		private JsonGenerator generator;
+
+		private int foreignKeyIndex;
+
+		private Object lastParentKey;
+
+		private Object lastKey;
+
+		private long skipped = 0;
+
+		EmbeddedRows(Embedded embedded) {
+			this.embedded = embedded;
+			this.field = new SerializedString(embedded.getField());
+			this.rowMapper = new JSONRowMapper(embedded.getTable(), null);
+		}
+
+		void open(String sql, Object[] parameters) throws SQLException {
+			rows = new JDBCRowIterator<Void>(jdbcTemplate.getDataSource(), sql, fetchSize, (rs, rowNum) -> {
+				try {
+					generator.writeStartObject();
+					rowMapper.writeColumns(rs, null, generator);
+					generator.writeEndObject();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
 				return null;
+			}, parameters);
+			if (rows.hasNext()) {
+				foreignKeyIndex = rows.peek().findColumn(embedded.getForeignKey());
 			}
-			JDBCType current = JDBCType.valueOf(type);
-			switch (current) {
-			case TIMESTAMP:
-				Timestamp timestamp = (Timestamp) value;
-				return timestamp.getTime();
-			case TIMESTAMP_WITH_TIMEZONE:
-				Timestamp ts = (Timestamp) value;
-				JsonObject tsWithTz = JsonObject.create();
-				tsWithTz.put("timestamp", ts.getTime());
-				tsWithTz.put("timezone", ts.getTimezoneOffset());
-				return tsWithTz;
-			case DATE:
-				Date sqlDate = (Date) value;
-				return sqlDate.getTime();
-			case DECIMAL:
-			case NUMERIC:
-				BigDecimal bigDecimal = (BigDecimal) value;
-				return bigDecimal.doubleValue();
-			case ARRAY:
-				Array array = (Array) value;
-				Object[] objects = (Object[]) array.getArray();
-				return JsonArray.from(objects);
-			case BINARY:
-			case BLOB:
-			case LONGVARBINARY:
-				return Base64.getEncoder().encodeToString((byte[]) value);
-			case OTHER:
-			case JAVA_OBJECT:
-				// database specific, default to String value
-				return value.toString();
-			default:
-				return value;
+		}
+
+		void write(Object parentKey, JsonGenerator generator) throws SQLException, IOException {
+			checkOrder(lastParentKey, parentKey, embedded.getParent(), embedded.getParent().getKeyColumns().get(0));
+			lastParentKey = parentKey;
+			this.generator = generator;
+			generator.writeFieldName(field);
+			generator.writeStartArray();
+			while (rows.hasNext()) {
+				Object key = rows.peek().getObject(foreignKeyIndex);
+				checkOrder(lastKey, key, embedded.getTable(), embedded.getForeignKey());
+				lastKey = key;
+				int order = compareKeys(key, parentKey);
+				if (order > 0) {
+					break;
+				} else if (order < 0) {
+					skipped++;
+					rows.skip();
+				} else {
+					rows.next();
+				}
+			}
+			generator.writeEndArray();
+		}
+
+		private void checkOrder(Object previous, Object current, Table table, String column) {
+			if (previous != null && compareKeys(previous, current) > 0) {
+				throw new IllegalStateException(String.format(
+						"Table %s is not sorted by %s the way the importer compares keys, %s came after %s. "
+								+ "Check the collation of the column.",
+						table.getName(), column, current, previous));
+			}
+		}
+
+		void close() {
+			if (rows != null) {
+				rows.close();
+			}
+			if (skipped > 0) {
+				log.debug(String.format("Skipped %d rows of %s not referencing any row of %s read.", skipped,
+						embedded.getTable().getName(), embedded.getParent().getName()));
 			}
 		}
 	}
@@ -188,7 +1217,15 @@ public class JDBCConfig implements ImporterConfig {
 
 		List<Column> columns = new ArrayList<Column>();
 
-		String primaryKey;
+		List<String> primaryKey = Collections.emptyList();
+
+		List<String> uniqueKey = Collections.emptyList();
+
+		String changeFilter;
+
+		Object[] changeParameters;
+
+		List<Embedded> embedded = new ArrayList<Embedded>();
 
 		public Table() {
 		}
@@ -197,12 +1234,36 @@ public class JDBCConfig implements ImporterConfig {
 			this.name = tableName;
 		}
 
-		public void setPrimaryKey(String primaryKey) {
+		/**
+		 * Columns of the primary key, in key order.
+		 */
+		public void setPrimaryKey(List<String> primaryKey) {
 			this.primaryKey = primaryKey;
 		}
 
+		/**
+		 * Columns of a unique, not nullable, index used as key when the table
+		 * has no primary key.
+		 */
+		public void setUniqueKey(List<String> uniqueKey) {
+			this.uniqueKey = uniqueKey;
+		}
+
 		public void addColumn(String name, int type) {
-			columns.add(new Column(name, type));
+			addColumn(name, type, true);
+		}
+
+		public void addColumn(String name, int type, boolean nullable) {
+			columns.add(new Column(name, type, nullable));
+		}
+
+		boolean hasNullableColumn(List<String> columnNames) {
+			for (Column column : columns) {
+				if (column.isNullable() && columnNames.contains(column.getName())) {
+					return true;
+				}
+			}
+			return false;
 		}
 
 		public String getName() {
@@ -213,10 +1274,63 @@ public class JDBCConfig implements ImporterConfig {
 			return columns;
 		}
 
-		public String getPrimaryKey() {
+		/**
+		 * Column with the given name, null if there is none.
+		 */
+		public Column getColumn(String columnName) {
+			for (Column column : columns) {
+				if (column.getName().equals(columnName)) {
+					return column;
+				}
+			}
+			return null;
+		}
+
+		public List<String> getPrimaryKey() {
 			return primaryKey;
 		}
 
+		public List<String> getUniqueKey() {
+			return uniqueKey;
+		}
+
+		/**
+		 * Columns identifying a row: the primary key, or the unique key if
+		 * there is none. Empty if the table has neither.
+		 */
+		public List<String> getKeyColumns() {
+			return primaryKey.isEmpty() ? uniqueKey : primaryKey;
+		}
+
+		/**
+		 * Only read the rows matching the given condition, selecting the rows
+		 * changed since the previous run, with the given parameters.
+		 */
+		public void setChangeFilter(String condition, Object[] parameters) {
+			this.changeFilter = condition;
+			this.changeParameters = parameters;
+		}
+
+		public String getChangeFilter() {
+			return changeFilter;
+		}
+
+		public Object[] getChangeParameters() {
+			return changeParameters;
+		}
+
+		/**
+		 * Embed the rows of child referencing this table through foreignKey
+		 * in the given field of the documents of this table.
+		 */
+		public void addEmbedded(Table child, String field, String foreignKey) {
+			embedded.add(new Embedded(this, child, field, foreignKey));
+		}
+
+		public List<Embedded> getEmbedded() {
+			return embedded;
+		}
+
 		public JsonObject toJsonObject() {
 			JsonObject obj = JsonObject.create();
 			JsonArray jsonColumns = JsonArray.create();
@@ -224,8 +1338,65 @@ public class JDBCConfig implements ImporterConfig {
 				jsonColumns.add(col.toJsonObject());
 			}
 			obj.put("tableName", name);
-			obj.put("primaryKey", primaryKey);
+			// a single column primary key is written as a String
+			if (primaryKey.size() > 1) {
+				obj.put("primaryKey", JsonArray.from(primaryKey));
+			} else {
+				obj.put("primaryKey", primaryKey.isEmpty() ? null : primaryKey.get(0));
+			}
+			if (!uniqueKey.isEmpty()) {
+				obj.put("uniqueKey", JsonArray.from(uniqueKey));
+			}
 			obj.put("columns", jsonColumns);
+			if (!embedded.isEmpty()) {
+				JsonArray jsonEmbedded = JsonArray.create();
+				for (Embedded e : embedded) {
+					jsonEmbedded.add(e.toJsonObject());
+				}
+				obj.put("embedded", jsonEmbedded);
+			}
+			return obj;
+		}
+	}
+
+	public class Embedded {
+
+		Table parent;
+
+		Table table;
+
+		String field;
+
+		String foreignKey;
+
+		public Embedded(Table parent, Table table, String field, String foreignKey) {
+			this.parent = parent;
+			this.table = table;
+			this.field = field;
+			this.foreignKey = foreignKey;
+		}
+
+		public Table getParent() {
+			return parent;
+		}
+
+		public Table getTable() {
+			return table;
+		}
+
+		public String getField() {
+			return field;
+		}
+
+		public String getForeignKey() {
+			return foreignKey;
+		}
+
+		public JsonObject toJsonObject() {
+			JsonObject obj = JsonObject.create();
+			obj.put("tableName", table.getName());
+			obj.put("field", field);
+			obj.put("foreignKey", foreignKey);
 			return obj;
 		}
 	}
@@ -236,6 +1407,8 @@ public class JDBCConfig implements ImporterConfig {
 
 		int type;
 
+		boolean nullable = true;
+
 		public Column() {
 		}
 
@@ -244,6 +1417,12 @@ public class JDBCConfig implements ImporterConfig {
 			this.type = type;
 		}
 
+		public Column(String name, int type, boolean nullable) {
+			this.name = name;
+			this.type = type;
+			this.nullable = nullable;
+		}
+
 		public String getName() {
 			return name;
 		}
@@ -252,6 +1431,10 @@ public class JDBCConfig implements ImporterConfig {
 			return type;
 		}
 
+		public boolean isNullable() {
+			return nullable;
+		}
+
 		public JsonObject toJsonObject() {
 			JsonObject obj = JsonObject.create();
 			obj.put("name", name);
@@ -260,4 +1443,64 @@ public class JDBCConfig implements ImporterConfig {
 		}
 
 	}
+
+	/**
+	 * Embed the rows of a table into the documents of the parent table they
+	 * reference, as an array in the given field, defaulting to the name of
+	 * the table. The foreign key column is found from the database metadata
+	 * unless set. Unless importTable is true, the table is not imported on
+	 * its own. Only one level of tables is embedded.
+	 */
+	public static class Embedding {
+
+		private String table;
+
+		private String parent;
+
+		private String field;
+
+		private String foreignKey;
+
+		private boolean importTable = false;
+
+		public String getTable() {
+			return table;
+		}
+
+		public void setTable(String table) {
+			this.table = table;
+		}
+
+		public String getParent() {
+			return parent;
+		}
+
+		public void setParent(String parent) {
+			this.parent = parent;
+		}
+
+		public String getField() {
+			return field;
+		}
+
+		public void setField(String field) {
+			this.field = field;
+		}
+
+		public String getForeignKey() {
+			return foreignKey;
+		}
+
+		public void setForeignKey(String foreignKey) {
+			this.foreignKey = foreignKey;
+		}
+
+		public boolean isImportTable() {
+			return importTable;
+		}
+
+		public void setImportTable(boolean importTable) {
+			this.importTable = importTable;
+		}
+	}
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+
+/**
+ * Key of the documents of a table, built from a template in which {table}
+ * is replaced by the name of the table, {key} by the values of its key
+ * columns separated by "::" and {column} by the value of that column. The
+ * template is compiled once per table to literal parts and column indices,
+ * so building the key of a row only appends them to a reused
+ * {@link StringBuilder}. If the table has no key columns, {key} is replaced
+ * by a hash of the JSON content of the row, which gives identical rows the
+ * same key on every run.
+ *
+ * @author ldoguin
+ */
+public class JDBCKeyTemplate {
+
+	public static final String DEFAULT_TEMPLATE = "{table}::{key}";
+
+	public static final String KEY_SEPARATOR = "::";
+
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\{([^}]+)\\}");
+
+	private static final long CONTENT_SEED = 0x2f0b3c1dL;
+
+	/** Index of the placeholders replaced by the hash of the content. */
+	private static final int CONTENT_INDEX = -1;
+
+	private final String template;
+
+	private final String[] literals;
+
+	private final String[] columns;
+
+	private final StringBuilder key = new StringBuilder(64);
+
+	private int[] indices;
+
+	public JDBCKeyTemplate(String template, String tableName, List<String> columnNames, List<String> keyColumns) {
+		this.template = template;
+		List<String> literals = new ArrayList<String>();
+		List<String> columns = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder();
+		Matcher matcher = PLACEHOLDER.matcher(template);
+		int end = 0;
+		while (matcher.find()) {
+			literal.append(template, end, matcher.start());
+			end = matcher.end();
+			String name = matcher.group(1);
+			if ("table".equals(name)) {
+				literal.append(tableName);
+				continue;
+			}
+			List<String> placeholderColumns = new ArrayList<String>();
+			if ("key".equals(name)) {
+				placeholderColumns.addAll(keyColumns);
+				if (placeholderColumns.isEmpty()) {
+					placeholderColumns.add(null);
+				}
+			} else {
+				placeholderColumns.add(findColumn(columnNames, name, tableName));
+			}
+			for (int i = 0; i < placeholderColumns.size(); i++) {
+				if (i > 0) {
+					literal.append(KEY_SEPARATOR);
+				}
+				literals.add(literal.toString());
+				literal.setLength(0);
+				columns.add(placeholderColumns.get(i));
+			}
+		}
+		literal.append(template, end, template.length());
+		literals.add(literal.toString());
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.columns = columns.toArray(new String[columns.size()]);
+	}
+
+	private String findColumn(List<String> columnNames, String name, String tableName) {
+		for (String columnName : columnNames) {
+			if (columnName.equalsIgnoreCase(name)) {
+				return columnName;
+			}
+		}
+		throw new IllegalArgumentException(String.format("Key template %s of table %s: no column %s", template,
+				tableName, name));
+	}
+
+	/**
+	 * Whether the key depends on the content of the row, given to
+	 * {@link #build(ResultSet, ByteBuf)} once written.
+	 */
+	public boolean isContentHash() {
+		for (String column : columns) {
+			if (column == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Key of the current row of the given result. The content of the row is
+	 * only read if {@link #isContentHash()}.
+	 */
+	public String build(ResultSet rs, ByteBuf content) throws SQLException {
+		if (indices == null) {
+			indices = new int[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				indices[i] = columns[i] == null ? CONTENT_INDEX : rs.findColumn(columns[i]);
+			}
+		}
+		key.setLength(0);
+		for (int i = 0; i < indices.length; i++) {
+			key.append(literals[i]);
+			if (indices[i] == CONTENT_INDEX) {
+				key.append(Long.toHexString(ContentHashIndex.hash(content, CONTENT_SEED)));
+			} else {
+				key.append(rs.getString(indices[i]));
+			}
+		}
+		return key.append(literals[indices.length]).toString();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Iterate over the rows of a query with a forward only, read only cursor.
+ * Rows are fetched from the database fetchSize at a time and mapped as they
+ * are read, so memory usage does not depend on the size of the result. The
+ * connection is kept out of auto-commit mode as PostgreSQL only uses a
+ * server side cursor inside a transaction, and MySQL is asked to stream rows
+ * with the Integer.MIN_VALUE fetch size convention.
+ *
+ * @author ldoguin
+ */
+public class JDBCRowIterator<T> implements Iterator<T>, AutoCloseable {
+
+	private static final Log log = LogFactory.getLog(JDBCRowIterator.class);
+
+	private final Connection connection;
+
+	private final PreparedStatement statement;
+
+	private final ResultSet resultSet;
+
+	private final RowMapper<T> rowMapper;
+
+	private int rowNum = 0;
+
+	private boolean hasNext;
+
+	public JDBCRowIterator(DataSource dataSource, String sql, int fetchSize,
+			RowMapper<T> rowMapper, Object... parameters) throws SQLException {
+		this.rowMapper = rowMapper;
+		this.connection = dataSource.getConnection();
+		try {
+			connection.setAutoCommit(false);
+			connection.setReadOnly(true);
+			statement = connection.prepareStatement(sql,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			if ("MySQL".equals(connection.getMetaData()
+					.getDatabaseProductName())) {
+				statement.setFetchSize(Integer.MIN_VALUE);
+			} else {
+				statement.setFetchSize(fetchSize);
+			}
+			// binds SqlParameterValue parameters with their SQL type
+			new ArgumentPreparedStatementSetter(parameters).setValues(statement);
+			resultSet = statement.executeQuery();
+			hasNext = resultSet.next();
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return hasNext;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext) {
+			throw new NoSuchElementException();
+		}
+		try {
+			T current = rowMapper.mapRow(resultSet, rowNum++);
+			hasNext = resultSet.next();
+			return current;
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The result set, positioned on the row mapped by the next call to
+	 * {@link #next()}, to look at that row without mapping it.
+	 */
+	public ResultSet peek() {
+		if (!hasNext) {
+			throw new NoSuchElementException();
+		}
+		return resultSet;
+	}
+
+	/**
+	 * Move to the next row without mapping the current one.
+	 */
+	public void skip() {
+		if (!hasNext) {
+			throw new NoSuchElementException();
+		}
+		try {
+			rowNum++;
+			hasNext = resultSet.next();
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (resultSet != null) {
+				resultSet.close();
+			}
+			if (statement != null) {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			log.warn("Could not close cursor", e);
+		}
+		try {
+			// read only transaction, nothing to commit
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+			}
+			connection.setReadOnly(false);
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			log.warn("Could not reset connection", e);
+		}
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			log.warn("Could not close connection", e);
+		}
+	}
+}
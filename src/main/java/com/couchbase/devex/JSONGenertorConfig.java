@@ -15,17 +15,30 @@
  */
 package com.couchbase.devex;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
 import rx.Observable;
+import rx.schedulers.Schedulers;
 
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
 import com.couchbase.client.java.document.Document;
 
 /**
  * This is a JSon generator importer configuration. To select it, set the
- * 'choosenImporter' property to 'JSON_GENERATOR'. 
+ * 'choosenImporter' property to 'JSON_GENERATOR'. It generates the given
+ * number of documents of about documentSize bytes, keyed keyPrefix followed
+ * by their number. Combined with the stub sink, it measures the throughput
+ * of the import pipeline without any source or cluster.
  * 
  * @author ldoguin
  */
@@ -34,8 +47,121 @@ import com.couchbase.client.java.document.Document;
 @ConditionalOnProperty(name = { "choosenImporter" }, havingValue = "JSON_GENERATOR")
 public class JSONGenertorConfig implements ImporterConfig {
 
+	private static final Log log = LogFactory.getLog(JSONGenertorConfig.class);
+
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+	/** Size of the fields other than the payload, roughly. */
+	private static final int FIXED_SIZE = 64;
+
+	private long documents = 100000;
+
+	private int documentSize = 256;
+
+	private String keyPrefix = "generated::";
+
+	private String typeField = "type";
+
+	private String type = "generated";
+
 	@Override
 	public Observable<Document> startImport() {
-		throw new UnsupportedOperationException();
+		log.info(String.format("Generating %d documents of about %d bytes.",
+				documents, documentSize));
+		return Observable.from((Iterable<Document>) DocumentGenerator::new)
+				.subscribeOn(Schedulers.computation());
+	}
+
+	/**
+	 * Generate the documents with one reused writer. Payloads are slices of
+	 * a random text, so they do not compress better than real data.
+	 */
+	private class DocumentGenerator implements Iterator<Document> {
+
+		private final JsonDocumentWriter writer = new JsonDocumentWriter();
+
+		private final int payloadSize = Math.max(0, documentSize - FIXED_SIZE
+				- typeField.length() - type.length());
+
+		private final char[] text = new char[payloadSize + 4096];
+
+		private final long createdAt = System.currentTimeMillis();
+
+		private long next = 0;
+
+		DocumentGenerator() {
+			Random random = new Random(0);
+			for (int i = 0; i < text.length; i++) {
+				text[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < documents;
+		}
+
+		@Override
+		public Document next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			long number = next++;
+			try {
+				JsonGenerator gen = writer.start();
+				gen.writeStartObject();
+				gen.writeStringField(typeField, type);
+				gen.writeNumberField("id", number);
+				gen.writeNumberField("createdAt", createdAt + number);
+				gen.writeFieldName("payload");
+				gen.writeString(text,
+						(int) (number * 31 % (text.length - payloadSize)),
+						payloadSize);
+				gen.writeEndObject();
+				return writer.finish(keyPrefix + number);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	public long getDocuments() {
+		return documents;
+	}
+
+	public void setDocuments(long documents) {
+		this.documents = documents;
+	}
+
+	public int getDocumentSize() {
+		return documentSize;
+	}
+
+	public void setDocumentSize(int documentSize) {
+		this.documentSize = documentSize;
+	}
+
+	public String getKeyPrefix() {
+		return keyPrefix;
+	}
+
+	public void setKeyPrefix(String keyPrefix) {
+		this.keyPrefix = keyPrefix;
+	}
+
+	public String getTypeField() {
+		return typeField;
+	}
+
+	public void setTypeField(String typeField) {
+		this.typeField = typeField;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
 	}
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func1;
+
+/**
+ * Retry function to use with {@link Observable#retryWhen(Func1)}. Retries
+ * the given exception types up to maxRetries times, waiting a random delay
+ * between 0 and min(maxDelay, baseDelay * 2^attempt) milliseconds between
+ * two attempts ("full jitter"). Spreading the retries avoids every delayed
+ * document hitting a busy cluster at the same time. Other exceptions, or the
+ * last one once retries are exhausted, are propagated.
+ *
+ * @author ldoguin
+ */
+public class JitteredBackoff implements
+		Func1<Observable<? extends Throwable>, Observable<?>> {
+
+	private final Class<? extends Throwable>[] retryOn;
+
+	private final long baseDelay;
+
+	private final long maxDelay;
+
+	private final int maxRetries;
+
+	private Action1<Throwable> retryListener = t -> {
+	};
+
+	@SafeVarargs
+	public JitteredBackoff(long baseDelay, long maxDelay, int maxRetries,
+			Class<? extends Throwable>... retryOn) {
+		this.baseDelay = Math.max(1, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+		this.maxRetries = maxRetries;
+		this.retryOn = retryOn;
+	}
+
+	/**
+	 * Call the given action with the error each time an attempt is retried.
+	 */
+	public JitteredBackoff onRetry(Action1<Throwable> retryListener) {
+		this.retryListener = retryListener;
+		return this;
+	}
+
+	@Override
+	public Observable<?> call(Observable<? extends Throwable> errors) {
+		return errors.flatMap(new Func1<Throwable, Observable<Long>>() {
+			int attempt = 0;
+
+			@Override
+			public Observable<Long> call(Throwable throwable) {
+				if (!shouldRetry(throwable) || attempt >= maxRetries) {
+					return Observable.error(throwable);
+				}
+				retryListener.call(throwable);
+				return Observable.timer(delay(attempt++),
+						TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	public long delay(int attempt) {
+		// cap the shift to avoid overflowing long
+		long ceiling = baseDelay << Math.min(attempt, 30);
+		if (ceiling <= 0 || ceiling > maxDelay) {
+			ceiling = maxDelay;
+		}
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	private boolean shouldRetry(Throwable throwable) {
+		for (Class<? extends Throwable> type : retryOn) {
+			if (type.isInstance(throwable)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonEncoding;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonFactory;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonGenerator;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+
+/**
+ * Write JSON documents one after the other with the same generator and
+ * scratch buffer. Each finished document is copied once, to an exactly
+ * sized {@link ByteBufJsonDocument}. An instance must only be used by one
+ * thread at a time.
+ *
+ * @author ldoguin
+ */
+public class JsonDocumentWriter {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+			1024);
+
+	private JsonGenerator generator;
+
+	public JsonDocumentWriter() {
+		generator = createGenerator();
+	}
+
+	private JsonGenerator createGenerator() {
+		try {
+			JsonGenerator generator = JSON_FACTORY.createGenerator(buffer,
+					JsonEncoding.UTF8);
+			// documents are written one after the other, not as a sequence
+			generator.setRootValueSeparator(null);
+			return generator;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Discard anything written so far and return the generator to write the
+	 * next document.
+	 */
+	public JsonGenerator start() {
+		if (!generator.getOutputContext().inRoot()) {
+			// the previous document failed half way
+			generator = createGenerator();
+		}
+		buffer.reset();
+		return generator;
+	}
+
+	public ByteBufJsonDocument finish(String id) throws IOException {
+		return ByteBufJsonDocument.create(id, finishContent());
+	}
+
+	/**
+	 * Content of the document written, for callers computing its key from
+	 * it.
+	 */
+	public ByteBuf finishContent() throws IOException {
+		generator.flush();
+		return Unpooled.wrappedBuffer(buffer.toByteArray());
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append only journal of document keys. Keys are queued by the caller and
+ * written in batches by a single background thread to a long lived file
+ * channel, so the Couchbase I/O threads never touch the disk. The journal is
+ * flushed every flushInterval milliseconds, and optionally forced to disk
+ * depending on the {@link FsyncPolicy}. If the background thread fails to
+ * write, keys are no longer accepted so that the import stops instead of
+ * losing them.
+ *
+ * @author ldoguin
+ */
+public class KeyJournal implements Closeable {
+
+	private static final Log log = LogFactory.getLog(KeyJournal.class);
+
+	private static final String LINE_SEPARATOR = System
+			.getProperty("line.separator");
+
+	private static final String POISON_PILL = new String("EOF");
+
+	private static final int BATCH_SIZE = 4096;
+
+	public enum FsyncPolicy {
+		/** Leave it to the OS to write the page cache to disk. */
+		NEVER,
+		/** Force the channel to disk after each flush. */
+		ON_FLUSH
+	}
+
+	private final String filename;
+
+	private final long flushInterval;
+
+	private final FsyncPolicy fsyncPolicy;
+
+	private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+
+	private final FileChannel channel;
+
+	private final Writer writer;
+
+	private final Thread writerThread;
+
+	private volatile boolean closed = false;
+
+	private volatile IOException failure;
+
+	public KeyJournal(String filename, long flushInterval,
+			FsyncPolicy fsyncPolicy) {
+		this.filename = filename;
+		this.flushInterval = flushInterval;
+		this.fsyncPolicy = fsyncPolicy;
+		try {
+			channel = FileChannel.open(Paths.get(filename),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe);
+		}
+		writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(),
+				64 * 1024);
+		writerThread = new Thread(this::drain, "journal-" + filename);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * Number of keys queued but not written yet.
+	 */
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Queue the given key to be written to the journal. Never blocks.
+	 *
+	 * @throws IllegalStateException
+	 *             if the journal is closed or could not be written
+	 */
+	public void append(String key) {
+		checkWritable();
+		queue.offer(key);
+	}
+
+	/**
+	 * Throw an IllegalStateException if the journal is closed or if the
+	 * background thread failed to write it.
+	 */
+	public void checkWritable() {
+		if (failure != null) {
+			throw new IllegalStateException("Could not write to journal "
+					+ filename, failure);
+		}
+		if (closed) {
+			throw new IllegalStateException("Journal " + filename
+					+ " is closed.");
+		}
+	}
+
+	private void drain() {
+		List<String> batch = new ArrayList<String>(BATCH_SIZE);
+		long lastFlush = System.currentTimeMillis();
+		boolean dirty = false;
+		try {
+			while (true) {
+				String first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, BATCH_SIZE - 1);
+				}
+				boolean done = false;
+				for (String key : batch) {
+					if (key == POISON_PILL) {
+						done = true;
+						break;
+					}
+					writer.write(key);
+					writer.write(LINE_SEPARATOR);
+					dirty = true;
+				}
+				batch.clear();
+				long now = System.currentTimeMillis();
+				if (dirty && (done || now - lastFlush >= flushInterval)) {
+					flush();
+					lastFlush = now;
+					dirty = false;
+				}
+				if (done) {
+					return;
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ioe) {
+			log.error("Could not write to journal " + filename, ioe);
+			failure = ioe;
+			// nothing will ever drain the queue again
+			queue.clear();
+		}
+	}
+
+	private void flush() throws IOException {
+		writer.flush();
+		if (fsyncPolicy == FsyncPolicy.ON_FLUSH) {
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Write every pending key, flush and close the underlying file.
+	 *
+	 * @throws IOException
+	 *             if some keys could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		queue.offer(POISON_PILL);
+		try {
+			writerThread.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			writer.close();
+		} catch (IOException ioe) {
+			if (failure == null) {
+				throw ioe;
+			}
+		}
+		if (failure != null) {
+			throw new IOException("Journal " + filename + " is incomplete.",
+					failure);
+		}
+	}
+}
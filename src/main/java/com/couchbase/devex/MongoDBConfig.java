@@ -15,25 +15,39 @@
  */
 package com.couchbase.devex;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
 import rx.Observable;
-import rx.functions.Func1;
 
 import com.couchbase.client.java.document.Document;
-import com.couchbase.client.java.document.RawJsonDocument;
+import com.mongodb.rx.client.FindObservable;
 import com.mongodb.rx.client.MongoClient;
 import com.mongodb.rx.client.MongoClients;
-import com.mongodb.rx.client.MongoDatabase;
+import com.mongodb.rx.client.MongoCollection;
 
 /**
  * This is a MongoDB importer configuration. To select it, set the
- * 'choosenImporter' property to 'MONGODB'.
+ * 'choosenImporter' property to 'MONGODB'. Either the collectionName of
+ * dbName is imported, or every collection matching the collections list.
+ * If parallelism is greater than 1, each collection is split in as many _id
+ * ranges. Ranges of every collection are read through the same client by up
+ * to maxConcurrentCursors concurrent cursors. The client is closed once the
+ * import completes or fails.
  * 
  * @author ldoguin
  */
@@ -45,6 +59,20 @@ public class MongoDBConfig implements ImporterConfig {
 
 	private static final Log log = LogFactory.getLog(MongoDBConfig.class);
 
+	/** Prefix of the checkpoint stream of the collection. */
+	public static final String CHECKPOINT_STREAM = "mongodb:";
+
+	/** Placeholder of the ObjectId in key templates. */
+	public static final String ID_PLACEHOLDER = "{id}";
+
+	/** Separator of the collection and the lower bound of a range stream. */
+	private static final String RANGE_SEPARATOR = ">=";
+
+	private static final Pattern NAME = Pattern.compile("[\\w-]+");
+
+	/** Number of _id values sampled for each range to split a collection. */
+	static final int SAMPLES_PER_RANGE = 32;
+
 	@Value("${mongodb.connectionString:mongodb://127.0.0.1:27017/}")
 	String connectionString;
 
@@ -60,19 +88,370 @@ public class MongoDBConfig implements ImporterConfig {
 	@Value("${mongodb.type:restaurant}")
 	String type;
 
+	@Value("${mongodb.parallelism:1}")
+	int parallelism;
+
+	@Value("${mongodb.batchSize:0}")
+	int batchSize;
+
+	@Value("${mongodb.jsonMode:STRICT}")
+	BsonJsonWriter.JsonMode jsonMode;
+
+	@Value("${mongodb.maxConcurrentCursors:4}")
+	int maxConcurrentCursors;
+
+	private List<CollectionConfig> collections = new ArrayList<CollectionConfig>();
+
+	@Autowired
+	Checkpoints checkpoints;
+
+	public List<CollectionConfig> getCollections() {
+		return collections;
+	}
+
 	@Override
 	public Observable<Document> startImport() {
-		MongoClient client = MongoClients.create(connectionString);
-		MongoDatabase db = client.getDatabase(dbName);
-		return db.getCollection(collectionName).find().toObservable()
-				.map(new Func1<org.bson.Document, Document>() {
-					public Document call(org.bson.Document mongoDoc) {
-						mongoDoc.put(typeField, type);
-						RawJsonDocument d = RawJsonDocument.create(mongoDoc
-								.getObjectId("_id").toHexString(), mongoDoc
-								.toJson());
-						return d;
-					};
+		return Observable.using(this::createClient, this::importCollections,
+				MongoClient::close);
+	}
+
+	MongoClient createClient() {
+		return MongoClients.create(connectionString);
+	}
+
+	/**
+	 * Read the selected collections through the given client, merging the
+	 * ranges of every collection under the single maxConcurrentCursors bound.
+	 */
+	Observable<Document> importCollections(MongoClient client) {
+		List<CollectionConfig> selected = collections;
+		if (selected.isEmpty()) {
+			CollectionConfig single = new CollectionConfig();
+			single.setDbName(dbName);
+			single.setCollectionName(collectionName);
+			single.setType(type);
+			selected = Collections.singletonList(single);
+		}
+		Observable<Observable<Document>> ranges = Observable.from(selected)
+				.concatMap(config -> resolve(client, config))
+				.doOnNext(config -> log.info(String.format(
+						"Importing %s.%s with type %s and key %s.",
+						config.getDbName(), config.getCollectionName(),
+						config.getType(), config.getKeyTemplate())))
+				.concatMap(config -> readRanges(client, config));
+		return Observable.merge(ranges, maxConcurrentCursors);
+	}
+
+	/**
+	 * List the collections matching the given configuration. Database and
+	 * collection names are regular expressions, names without any special
+	 * character are used as is, without listing databases or collections.
+	 * System collections are never matched.
+	 */
+	Observable<CollectionConfig> resolve(MongoClient client,
+			CollectionConfig config) {
+		String db = config.getDbName() == null ? dbName : config.getDbName();
+		Observable<String> dbNames = NAME.matcher(db).matches() ? Observable
+				.just(db) : client.listDatabaseNames().filter(
+				name -> name.matches(db));
+		return dbNames.concatMap(name -> {
+			String collection = config.getCollectionName();
+			Observable<String> collectionNames = NAME.matcher(collection)
+					.matches() ? Observable.just(collection) : client
+					.getDatabase(name).listCollectionNames()
+					.filter(c -> c.matches(collection));
+			return collectionNames.filter(c -> !c.startsWith("system."))
+					.map(c -> config.resolve(name, c, typeField));
+		});
+	}
+
+	/**
+	 * The parallelism _id ranges of the given collection, each to be read by
+	 * its own cursor. When resuming, the ranges of the previous run are read
+	 * again, as a new sample would not split the collection on the same _id
+	 * values.
+	 */
+	Observable<Observable<Document>> readRanges(MongoClient client,
+			CollectionConfig config) {
+		MongoCollection<org.bson.Document> collection = client.getDatabase(
+				config.getDbName()).getCollection(config.getCollectionName());
+		List<Object> resumed = resumedSplitPoints(config);
+		Observable<List<Object>> splitPoints = resumed != null ? Observable
+				.just(resumed) : parallelism > 1 ? findSplitPoints(collection)
+				: Observable.just(Collections.emptyList());
+		return splitPoints.flatMap(points -> {
+			List<Observable<Document>> ranges = new ArrayList<Observable<Document>>();
+			for (int i = 0; i <= points.size(); i++) {
+				Object lowerBound = i == 0 ? null : points.get(i - 1);
+				Object upperBound = i == points.size() ? null : points.get(i);
+				ranges.add(readRange(collection, config, lowerBound,
+						upperBound));
+			}
+			if (ranges.size() > 1) {
+				log.info(String.format(
+						"Reading collection %s.%s in %d _id ranges.",
+						config.getDbName(), config.getCollectionName(),
+						ranges.size()));
+			}
+			return Observable.from(ranges);
+		});
+	}
+
+	/**
+	 * Read the documents of the collection with an _id between lowerBound
+	 * included and upperBound excluded, null bounds being open. When
+	 * checkpoints are enabled documents are sorted by _id, and the range is
+	 * resumed after the last _id imported by the previous run. If batchSize
+	 * is greater than 0, documents are requested from the cursor batchSize at
+	 * a time, which the driver uses as the size of its batches, with one
+	 * batch read ahead. Documents are read as raw BSON and written as JSON by
+	 * a {@link BsonJsonWriter}.
+	 */
+	public Observable<Document> readRange(
+			MongoCollection<org.bson.Document> collection,
+			CollectionConfig config, Object lowerBound, Object upperBound) {
+		CheckpointTracker tracker = checkpoints.tracker(streamName(config)
+				+ (lowerBound == null ? "" : RANGE_SEPARATOR + lowerBound));
+		org.bson.Document range = new org.bson.Document();
+		if (tracker.getResumePosition() != null) {
+			range.put("$gt", new ObjectId(tracker.getResumePosition()));
+		} else if (lowerBound != null) {
+			range.put("$gte", lowerBound);
+		}
+		if (upperBound != null) {
+			range.put("$lt", upperBound);
+		}
+		FindObservable<RawBsonDocument> documents = collection
+				.find(RawBsonDocument.class);
+		if (!range.isEmpty()) {
+			documents = documents.filter(new org.bson.Document("_id", range));
+		}
+		if (checkpoints.isEnabled()) {
+			documents = documents.sort(new org.bson.Document("_id", 1));
+		}
+		Observable<RawBsonDocument> cursor = documents.toObservable();
+		if (batchSize > 0) {
+			cursor = cursor.buffer(batchSize).concatMap(Observable::from);
+		}
+		BsonJsonWriter writer = createWriter(config);
+		return cursor.map(bson -> {
+			try {
+				Document d = writer.toDocument(bson);
+				return tracker.track(d, writer.objectId(d.id()));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+	}
+
+	private String streamName(CollectionConfig config) {
+		return CHECKPOINT_STREAM + config.getDbName() + "."
+				+ config.getCollectionName();
+	}
+
+	/**
+	 * The lower bounds of the ranges of the given collection checkpointed by
+	 * the previous run, or null if it did not checkpoint any.
+	 */
+	List<Object> resumedSplitPoints(CollectionConfig config) {
+		String name = streamName(config);
+		List<ObjectId> bounds = new ArrayList<ObjectId>();
+		boolean resumed = false;
+		for (String stream : checkpoints.getResumedStreams(name)) {
+			if (stream.equals(name)) {
+				resumed = true;
+			} else if (stream.startsWith(name + RANGE_SEPARATOR)) {
+				resumed = true;
+				bounds.add(new ObjectId(stream.substring(name.length()
+						+ RANGE_SEPARATOR.length())));
+			}
+		}
+		if (!resumed) {
+			return null;
+		}
+		Collections.sort(bounds);
+		return new ArrayList<Object>(bounds);
+	}
+
+	/**
+	 * Find the _id values splitting the collection in parallelism ranges of
+	 * about the same number of documents, from the quantiles of a $sample of
+	 * SAMPLES_PER_RANGE documents per range. Servers without $sample, before
+	 * MongoDB 3.2, split the ObjectIds between the first and the last one by
+	 * their timestamp instead.
+	 */
+	Observable<List<Object>> findSplitPoints(
+			MongoCollection<org.bson.Document> collection) {
+		List<org.bson.Document> pipeline = Arrays.asList(
+				new org.bson.Document("$sample", new org.bson.Document("size",
+						SAMPLES_PER_RANGE * parallelism)),
+				new org.bson.Document("$project", new org.bson.Document("_id",
+						1)), new org.bson.Document("$sort",
+						new org.bson.Document("_id", 1)));
+		return collection.aggregate(pipeline, org.bson.Document.class)
+				.toObservable().map(sample -> sample.get("_id")).toList()
+				.map(this::quantiles).onErrorResumeNext(e -> {
+					log.warn(String.format(
+							"Could not sample the _id values (%s), splitting them by timestamp.",
+							e.getMessage()));
+					return interpolateSplitPoints(collection);
 				});
 	}
+
+	/**
+	 * The values splitting the given sorted sample in parallelism ranges of
+	 * the same size.
+	 */
+	List<Object> quantiles(List<Object> sample) {
+		List<Object> splitPoints = new ArrayList<Object>();
+		for (int i = 1; i < parallelism; i++) {
+			int index = (int) ((long) sample.size() * i / parallelism);
+			if (index == 0) {
+				continue;
+			}
+			Object splitPoint = sample.get(index);
+			if (splitPoints.isEmpty()
+					|| !splitPoint.equals(splitPoints.get(splitPoints.size() - 1))) {
+				splitPoints.add(splitPoint);
+			}
+		}
+		return splitPoints;
+	}
+
+	/**
+	 * Split the ObjectIds between the first and the last _id, read from the
+	 * ends of the _id index, in parallelism ranges of the same duration.
+	 * Other _id types are read as a single range.
+	 */
+	Observable<List<Object>> interpolateSplitPoints(
+			MongoCollection<org.bson.Document> collection) {
+		return Observable.zip(findId(collection, 1), findId(collection, -1),
+				(first, last) -> {
+					List<Object> splitPoints = new ArrayList<Object>();
+					if (!(first instanceof ObjectId && last instanceof ObjectId)) {
+						log.warn("Reading a collection without ObjectId _id values in a single range.");
+						return splitPoints;
+					}
+					long from = ((ObjectId) first).getTimestamp();
+					long to = ((ObjectId) last).getTimestamp();
+					for (int i = 1; i < parallelism; i++) {
+						long timestamp = from + (to - from) * i / parallelism;
+						if (timestamp > from
+								&& (splitPoints.isEmpty() || timestamp > ((ObjectId) splitPoints
+										.get(splitPoints.size() - 1))
+										.getTimestamp())) {
+							// the lowest ObjectId of that second
+							splitPoints.add(new ObjectId((int) timestamp, 0,
+									(short) 0, 0));
+						}
+					}
+					return splitPoints;
+				}).defaultIfEmpty(Collections.emptyList());
+	}
+
+	/**
+	 * Find the first _id of the collection in the given order, 1 for the
+	 * lowest and -1 for the highest.
+	 */
+	Observable<Object> findId(MongoCollection<org.bson.Document> collection,
+			int order) {
+		return collection.find().projection(new org.bson.Document("_id", 1))
+				.sort(new org.bson.Document("_id", order)).limit(1)
+				.toObservable().map(first -> first.get("_id"));
+	}
+
+	/**
+	 * Create a writer converting the raw BSON documents of one cursor of the
+	 * given collection to JSON documents, with its type field and key.
+	 */
+	public BsonJsonWriter createWriter(CollectionConfig config) {
+		String key = config.getKeyTemplate();
+		int id = key.indexOf(ID_PLACEHOLDER);
+		return new BsonJsonWriter(config.getTypeField(), config.getType(),
+				jsonMode, key.substring(0, id), key.substring(id
+						+ ID_PLACEHOLDER.length()));
+	}
+
+	/**
+	 * A collection, or a pattern of collections, to import. The type
+	 * defaults to the name of the collection and the typeField to the global
+	 * one. The keyTemplate must contain {id}, replaced by the hex value of the
+	 * ObjectId of each document, and may contain {db}, {collection} and
+	 * {type}.
+	 */
+	public static class CollectionConfig {
+
+		private String dbName;
+
+		private String collectionName;
+
+		private String typeField;
+
+		private String type;
+
+		private String keyTemplate = ID_PLACEHOLDER;
+
+		public String getDbName() {
+			return dbName;
+		}
+
+		public void setDbName(String dbName) {
+			this.dbName = dbName;
+		}
+
+		public String getCollectionName() {
+			return collectionName;
+		}
+
+		public void setCollectionName(String collectionName) {
+			this.collectionName = collectionName;
+		}
+
+		public String getTypeField() {
+			return typeField;
+		}
+
+		public void setTypeField(String typeField) {
+			this.typeField = typeField;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public void setType(String type) {
+			this.type = type;
+		}
+
+		public String getKeyTemplate() {
+			return keyTemplate;
+		}
+
+		public void setKeyTemplate(String keyTemplate) {
+			if (!keyTemplate.contains(ID_PLACEHOLDER)) {
+				throw new IllegalArgumentException(String.format(
+						"Key template %s does not contain %s", keyTemplate,
+						ID_PLACEHOLDER));
+			}
+			this.keyTemplate = keyTemplate;
+		}
+
+		/**
+		 * Copy this configuration for the given collection, with the defaults
+		 * and the placeholders of the key template other than {id} resolved.
+		 */
+		CollectionConfig resolve(String db, String collection,
+				String defaultTypeField) {
+			CollectionConfig resolved = new CollectionConfig();
+			resolved.dbName = db;
+			resolved.collectionName = collection;
+			resolved.typeField = typeField == null ? defaultTypeField
+					: typeField;
+			resolved.type = type == null ? collection : type;
+			resolved.keyTemplate = keyTemplate.replace("{db}", db)
+					.replace("{collection}", collection)
+					.replace("{type}", resolved.type);
+			return resolved;
+		}
+	}
 }
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonFactory;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonParseException;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonParser;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonProcessingException;
+import com.couchbase.client.deps.com.fasterxml.jackson.core.JsonToken;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.ByteBufInputStream;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.java.document.Document;
+
+/**
+ * Importer of JSON lines (NDJSON) files, one JSON object per line. To select
+ * it, set the 'choosenImporter' property to 'NDJSON'. The bytes of each line
+ * are used as is as the content of its document. Only the key is read from
+ * the line, with a streaming parser stopping at the keyField.
+ * 
+ * Plain files are memory mapped and split in ranges of lines parsed in
+ * parallel, JSON strings can not contain a raw line feed so every line feed
+ * is a boundary. Gzipped files, ending with .gz, can not be split and are
+ * read by a single thread.
+ * 
+ * @author ldoguin
+ */
+@ConfigurationProperties("ndjson")
+@Configuration
+@ConditionalOnProperty(name = { "choosenImporter" }, havingValue = "NDJSON")
+public class NDJSONConfig implements ImporterConfig {
+
+	private static final Log log = LogFactory.getLog(NDJSONConfig.class);
+
+	/**
+	 * Checkpoint stream of a gzipped file, or prefix of the stream of each
+	 * range of a plain file. Positions are offsets in the uncompressed file.
+	 */
+	public static final String CHECKPOINT_STREAM = "ndjson";
+
+	public static final String CHECKPOINT_RANGE_STREAM = CHECKPOINT_STREAM
+			+ ":%d-%d";
+
+	/** Smallest range worth parsing on its own worker. */
+	private static final long MIN_SPLIT_SIZE = 1024 * 1024;
+
+	/** Bytes decompressed at a time from gzipped files. */
+	private static final int READ_SIZE = 64 * 1024;
+
+	private static final long KEY_SEED = 0x1b873593L;
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private String filePath;
+
+	private String keyField = "id";
+
+	private String keyPrefix = "";
+
+	private int parallelism = 1;
+
+	private String[] keyPath = { keyField };
+
+	@Autowired
+	private Checkpoints checkpoints;
+
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public void setFilePath(String filePath) {
+		this.filePath = filePath;
+	}
+
+	public String getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * Field holding the key of each document, nested fields being separated
+	 * by dots.
+	 */
+	public void setKeyField(String keyField) {
+		this.keyField = keyField;
+		this.keyPath = keyField.split("\\.");
+	}
+
+	public String getKeyPrefix() {
+		return keyPrefix;
+	}
+
+	public void setKeyPrefix(String keyPrefix) {
+		this.keyPrefix = keyPrefix;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	@Override
+	public Observable<Document> startImport() {
+		if (getFilePath().endsWith(".gz")) {
+			return importCompressed();
+		}
+		return importRanges();
+	}
+
+	/**
+	 * Document of the given line, keyed by keyPrefix and the value of
+	 * keyField, or a hash of the line if it has no such field. The line is
+	 * the content of the document, without its trailing whitespace. Returns
+	 * null for blank lines.
+	 */
+	public Document createDocument(ByteBuf line) throws IOException {
+		int length = line.readableBytes();
+		while (length > 0
+				&& isWhitespace(line.getByte(line.readerIndex() + length - 1))) {
+			length--;
+		}
+		if (length == 0) {
+			return null;
+		}
+		ByteBuf content = line.slice(line.readerIndex(), length);
+		String key;
+		try (JsonParser parser = JSON_FACTORY
+				.createParser(new ByteBufInputStream(content.duplicate()))) {
+			key = findKey(parser);
+		}
+		if (key == null) {
+			key = Long.toHexString(ContentHashIndex.hash(content, KEY_SEED));
+		}
+		return ByteBufJsonDocument.create(keyPrefix + key, content);
+	}
+
+	/**
+	 * Text of the scalar value at keyPath, reading the object only up to it.
+	 */
+	private String findKey(JsonParser parser) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException("Line is not a JSON object",
+					parser.getCurrentLocation());
+		}
+		int depth = 0;
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			token = parser.nextToken();
+			if (!name.equals(keyPath[depth])) {
+				parser.skipChildren();
+			} else if (depth == keyPath.length - 1) {
+				boolean scalar = token.isScalarValue()
+						&& token != JsonToken.VALUE_NULL;
+				return scalar ? parser.getText() : null;
+			} else if (token == JsonToken.START_OBJECT) {
+				depth++;
+			} else {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	/**
+	 * Memory map the file and parse ranges of lines on up to parallelism
+	 * workers. Documents are emitted in no particular order. When resuming,
+	 * the ranges of the previous run are used and each one restarts after
+	 * the lines it already imported.
+	 */
+	private Observable<Document> importRanges() {
+		try (FileChannel channel = FileChannel.open(Paths.get(getFilePath()),
+				StandardOpenOption.READ)) {
+			// no quote char, every line feed is a boundary
+			CSVSplitter splitter = new CSVSplitter(channel, '\0');
+			List<long[]> ranges = getResumedRanges();
+			if (ranges.isEmpty()) {
+				long size = channel.size();
+				int splits = (int) Math.max(
+						Math.min(getParallelism(), size / MIN_SPLIT_SIZE),
+						(size + CSVSplitter.MAX_SPLIT_SIZE - 1)
+								/ CSVSplitter.MAX_SPLIT_SIZE);
+				long[] boundaries = splitter.split(0, splits);
+				for (int i = 0; i < boundaries.length - 1; i++) {
+					ranges.add(new long[] { boundaries[i], boundaries[i + 1] });
+				}
+			}
+			log.info(String.format("Parsing %s in %d ranges.", getFilePath(),
+					ranges.size()));
+			List<Observable<Document>> observables = new ArrayList<Observable<Document>>();
+			for (long[] range : ranges) {
+				CheckpointTracker tracker = checkpoints.tracker(String.format(
+						CHECKPOINT_RANGE_STREAM, range[0], range[1]), range[0]);
+				long offset = Long.parseLong(tracker.getResumePosition());
+				// the mapping stays valid once the channel is closed
+				observables.add(importRange(splitter.map(offset, range[1]),
+						offset, tracker));
+			}
+			return Observable.merge(Observable.from(observables),
+					Math.max(1, getParallelism()));
+		} catch (IOException e) {
+			return Observable.error(e);
+		}
+	}
+
+	/**
+	 * Byte ranges of the previous run, sorted by offset.
+	 */
+	private List<long[]> getResumedRanges() {
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (String name : checkpoints
+				.getResumedStreams(CHECKPOINT_STREAM + ":")) {
+			String[] bounds = name.substring(CHECKPOINT_STREAM.length() + 1)
+					.split("-");
+			ranges.add(new long[] { Long.parseLong(bounds[0]),
+					Long.parseLong(bounds[1]) });
+		}
+		ranges.sort((r1, r2) -> Long.compare(r1[0], r2[0]));
+		return ranges;
+	}
+
+	/**
+	 * Documents of the lines of the given mapped range, starting at the
+	 * given offset of the file. Contents are slices of the mapping, no line
+	 * is copied.
+	 */
+	private Observable<Document> importRange(MappedByteBuffer range,
+			long offset, CheckpointTracker tracker) {
+		return Observable.defer(
+				() -> Observable.from(() -> new LineIterator(Unpooled
+						.wrappedBuffer(range), null, offset, tracker)))
+				.subscribeOn(Schedulers.computation());
+	}
+
+	/**
+	 * Decompress the file on a single thread, skipping the uncompressed
+	 * bytes imported by the previous run. Each line is copied out of the
+	 * decompression buffer.
+	 */
+	private Observable<Document> importCompressed() {
+		CheckpointTracker tracker = checkpoints.tracker(CHECKPOINT_STREAM, 0);
+		long offset = Long.parseLong(tracker.getResumePosition());
+		return Observable.using(() -> {
+			try {
+				InputStream in = new GZIPInputStream(new FileInputStream(
+						getFilePath()), READ_SIZE);
+				long skipped = 0;
+				while (skipped < offset) {
+					long n = in.skip(offset - skipped);
+					if (n <= 0) {
+						break;
+					}
+					skipped += n;
+				}
+				if (skipped > 0) {
+					log.info(String.format(
+							"Skipped the %d bytes imported before.", skipped));
+				}
+				return in;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}, in -> Observable.from(() -> new LineIterator(Unpooled.buffer(READ_SIZE),
+				in, offset, tracker)), in -> {
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.warn("Could not close " + getFilePath(), e);
+			}
+		}).subscribeOn(Schedulers.io());
+	}
+
+	/**
+	 * Documents of the lines of a buffer, refilled from the given stream if
+	 * there is one. Each document is tracked with the offset following its
+	 * line. Lines which are not JSON objects are logged and skipped.
+	 */
+	private class LineIterator implements Iterator<Document> {
+
+		private final ByteBuf buffer;
+
+		private final InputStream in;
+
+		private final CheckpointTracker tracker;
+
+		private long offset;
+
+		private Document next;
+
+		LineIterator(ByteBuf buffer, InputStream in, long offset,
+				CheckpointTracker tracker) {
+			this.buffer = buffer;
+			this.in = in;
+			this.offset = offset;
+			this.tracker = tracker;
+			this.next = advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Document next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Document current = next;
+			next = advance();
+			return current;
+		}
+
+		private Document advance() {
+			try {
+				while (true) {
+					int length = buffer.bytesBefore((byte) '\n');
+					if (length < 0 && fill()) {
+						continue;
+					}
+					if (!buffer.isReadable()) {
+						return null;
+					}
+					long lineOffset = offset;
+					int lineLength = length < 0 ? buffer.readableBytes()
+							: length;
+					ByteBuf line = buffer.slice(buffer.readerIndex(),
+							lineLength);
+					if (in != null) {
+						// the buffer is reused
+						line = Unpooled.copiedBuffer(line);
+					}
+					int consumed = length < 0 ? lineLength : lineLength + 1;
+					buffer.skipBytes(consumed);
+					offset += consumed;
+					try {
+						Document document = createDocument(line);
+						if (document != null) {
+							return tracker.track(document, offset);
+						}
+					} catch (JsonProcessingException e) {
+						log.warn(String.format(
+								"Skipping invalid line at offset %d of %s: %s",
+								lineOffset, getFilePath(),
+								e.getOriginalMessage()));
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Read more bytes from the stream, if any. Returns false at its end.
+		 */
+		private boolean fill() throws IOException {
+			if (in == null) {
+				return false;
+			}
+			buffer.discardReadBytes();
+			buffer.ensureWritable(READ_SIZE);
+			return buffer.writeBytes(in, READ_SIZE) > 0;
+		}
+	}
+}
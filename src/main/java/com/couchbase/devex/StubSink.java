@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import rx.Observable;
+
+import com.couchbase.client.core.BackpressureException;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.error.TemporaryFailureException;
+
+/**
+ * In memory {@link DocumentSink}, to measure the throughput of the import
+ * pipeline without a cluster. Each upsert is acknowledged after latency plus
+ * a random delay up to latencyJitter microseconds. Given fractions of the
+ * upserts fail with a {@link BackpressureException} right away, with a
+ * {@link TemporaryFailureException} after the latency, or never complete so
+ * that they hit the importTimeout. To select it, set the 'sink' property to
+ * 'STUB'.
+ *
+ * @author ldoguin
+ */
+@ConfigurationProperties("stub")
+@Configuration
+@ConditionalOnProperty(name = { "sink" }, havingValue = "STUB")
+public class StubSink implements DocumentSink {
+
+	private static final Log log = LogFactory.getLog(StubSink.class);
+
+	private long latency = 0;
+
+	private long latencyJitter = 0;
+
+	private double backpressureRate = 0;
+
+	private double temporaryFailureRate = 0;
+
+	private double timeoutRate = 0;
+
+	private int nodes = 1;
+
+	private boolean storeDocuments = false;
+
+	/** Partitions spread on the nodes, as in a Couchbase bucket. */
+	private static final int PARTITIONS = 1024;
+
+	private final Map<String, Document> documents = new ConcurrentHashMap<String, Document>();
+
+	private final LongAdder upserts = new LongAdder();
+
+	private final LongAdder backpressures = new LongAdder();
+
+	private final LongAdder temporaryFailures = new LongAdder();
+
+	private final LongAdder timeouts = new LongAdder();
+
+	@Override
+	public Observable<Document> upsert(Document document) {
+		return Observable.defer(() -> {
+			upserts.increment();
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			double draw = random.nextDouble();
+			if (draw < backpressureRate) {
+				backpressures.increment();
+				return Observable.error(new BackpressureException());
+			}
+			draw -= backpressureRate;
+			if (draw < timeoutRate) {
+				timeouts.increment();
+				return Observable.never();
+			}
+			draw -= timeoutRate;
+			Observable<Document> result;
+			if (draw < temporaryFailureRate) {
+				temporaryFailures.increment();
+				result = Observable.error(new TemporaryFailureException());
+			} else {
+				result = Observable.defer(() -> Observable
+						.just(store(document)));
+			}
+			long delay = latency
+					+ (latencyJitter > 0 ? random.nextLong(latencyJitter + 1)
+							: 0);
+			return delay > 0 ? result.delaySubscription(delay,
+					TimeUnit.MICROSECONDS) : result;
+		});
+	}
+
+	private Document store(Document document) {
+		if (storeDocuments) {
+			documents.put(document.id(), document);
+		}
+		return document;
+	}
+
+	@Override
+	public int nodeCount() {
+		return nodes;
+	}
+
+	@Override
+	public int nodeIndex(String id) {
+		return CouchbaseSink.partition(id, PARTITIONS) % nodes;
+	}
+
+	/**
+	 * Last document upserted with the given key, if storeDocuments is set.
+	 */
+	public Document get(String id) {
+		return documents.get(id);
+	}
+
+	/**
+	 * Number of distinct keys upserted, if storeDocuments is set.
+	 */
+	public int size() {
+		return documents.size();
+	}
+
+	@PreDestroy
+	public void logInjectedFailures() {
+		log.info(String.format(
+				"Stub sink received %d upserts, injected %d backpressure exceptions, "
+						+ "%d temporary failures and %d timeouts.",
+				upserts.sum(), backpressures.sum(), temporaryFailures.sum(),
+				timeouts.sum()));
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public long getLatencyJitter() {
+		return latencyJitter;
+	}
+
+	public void setLatencyJitter(long latencyJitter) {
+		this.latencyJitter = latencyJitter;
+	}
+
+	public double getBackpressureRate() {
+		return backpressureRate;
+	}
+
+	public void setBackpressureRate(double backpressureRate) {
+		this.backpressureRate = backpressureRate;
+	}
+
+	public double getTemporaryFailureRate() {
+		return temporaryFailureRate;
+	}
+
+	public void setTemporaryFailureRate(double temporaryFailureRate) {
+		this.temporaryFailureRate = temporaryFailureRate;
+	}
+
+	public double getTimeoutRate() {
+		return timeoutRate;
+	}
+
+	public void setTimeoutRate(double timeoutRate) {
+		this.timeoutRate = timeoutRate;
+	}
+
+	public int getNodes() {
+		return nodes;
+	}
+
+	public void setNodes(int nodes) {
+		this.nodes = nodes;
+	}
+
+	public boolean isStoreDocuments() {
+		return storeDocuments;
+	}
+
+	public void setStoreDocuments(boolean storeDocuments) {
+		this.storeDocuments = storeDocuments;
+	}
+}
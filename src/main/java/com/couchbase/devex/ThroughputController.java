@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+
+import com.couchbase.client.core.BackpressureException;
+import com.couchbase.client.core.RequestCancelledException;
+import com.couchbase.client.deps.org.HdrHistogram.Histogram;
+import com.couchbase.client.deps.org.HdrHistogram.Recorder;
+import com.couchbase.client.java.error.TemporaryFailureException;
+
+/**
+ * AIMD (additive increase, multiplicative decrease) controller of the number
+ * of concurrent upserts. Every controlInterval milliseconds it looks at the
+ * upsert latencies and at the number of congestion signals
+ * ({@link TemporaryFailureException}, {@link BackpressureException},
+ * {@link RequestCancelledException} and timeouts) observed during the
+ * interval. If the cluster pushed back, or if the 99th percentile latency is
+ * above latencyTarget, the window is multiplied by decreaseFactor. Otherwise
+ * it grows by concurrencyIncrease, up to the maximum concurrency given by
+ * {@link ImportJsonToCouchbase#getMaxConcurrentUpserts()}.
+ *
+ * @author ldoguin
+ */
+@Configuration
+public class ThroughputController {
+
+	private static final Log log = LogFactory
+			.getLog(ThroughputController.class);
+
+	private static final long MAX_TRACKED_LATENCY = TimeUnit.MINUTES
+			.toMicros(5);
+
+	@Value("${adaptiveConcurrency:true}")
+	private boolean adaptiveConcurrency;
+
+	@Value("${minConcurrentUpserts:8}")
+	private int minConcurrentUpserts;
+
+	@Value("${concurrencyIncrease:16}")
+	private int concurrencyIncrease;
+
+	@Value("${concurrencyDecreaseFactor:0.7}")
+	private double concurrencyDecreaseFactor;
+
+	@Value("${latencyTarget:100}")
+	private long latencyTarget;
+
+	@Value("${controlInterval:500}")
+	private long controlInterval;
+
+	private final Recorder latencies = new Recorder(MAX_TRACKED_LATENCY, 2);
+
+	private Histogram intervalHistogram;
+
+	private final AtomicLong congestionSignals = new AtomicLong();
+
+	private final AtomicLong nextAdjustment = new AtomicLong();
+
+	private final Queue<Subscriber<? super Boolean>> waiting = new ArrayDeque<Subscriber<? super Boolean>>();
+
+	private int maxConcurrency = Integer.MAX_VALUE;
+
+	private int limit = Integer.MAX_VALUE;
+
+	private int inFlight = 0;
+
+	private boolean saturated = false;
+
+	/**
+	 * Set the upper bound of the window. The window starts at a quarter of it
+	 * and grows from there if adaptiveConcurrency is enabled.
+	 */
+	public synchronized void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+		if (adaptiveConcurrency) {
+			limit = Math.min(maxConcurrency,
+					Math.max(minConcurrentUpserts, maxConcurrency / 4));
+		} else {
+			limit = maxConcurrency;
+		}
+		nextAdjustment.set(System.currentTimeMillis() + controlInterval);
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Number of upserts waiting for a slot in the window.
+	 */
+	public synchronized int getWaiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * Subscribe to the given operation once a slot is available in the
+	 * window, and free the slot when it terminates or is unsubscribed.
+	 */
+	public <T> Observable<T> throttle(Observable<T> operation) {
+		return Observable.<Boolean> create(this::acquire).flatMap(permit -> {
+			AtomicBoolean released = new AtomicBoolean(false);
+			Action0 release = () -> {
+				if (released.compareAndSet(false, true)) {
+					release();
+				}
+			};
+			return operation.doOnTerminate(release).doOnUnsubscribe(release);
+		});
+	}
+
+	/**
+	 * Record the latency of a successful upsert, in nanoseconds.
+	 */
+	public void onSuccess(long latency) {
+		latencies.recordValue(Math.min(MAX_TRACKED_LATENCY,
+				TimeUnit.NANOSECONDS.toMicros(latency)));
+		maybeAdjust();
+	}
+
+	public void onFailure(Throwable throwable) {
+		if (isCongestionSignal(throwable)) {
+			congestionSignals.incrementAndGet();
+		}
+		maybeAdjust();
+	}
+
+	public static boolean isCongestionSignal(Throwable throwable) {
+		return throwable instanceof TemporaryFailureException
+				|| throwable instanceof BackpressureException
+				|| throwable instanceof RequestCancelledException
+				|| throwable instanceof TimeoutException;
+	}
+
+	private void acquire(Subscriber<? super Boolean> subscriber) {
+		synchronized (this) {
+			if (inFlight >= limit) {
+				saturated = true;
+				waiting.add(subscriber);
+				return;
+			}
+			inFlight++;
+		}
+		grant(subscriber);
+	}
+
+	private void release() {
+		List<Subscriber<? super Boolean>> granted;
+		synchronized (this) {
+			inFlight--;
+			granted = pollWaiting();
+		}
+		granted.forEach(this::grant);
+	}
+
+	private List<Subscriber<? super Boolean>> pollWaiting() {
+		List<Subscriber<? super Boolean>> granted = new ArrayList<Subscriber<? super Boolean>>();
+		while (inFlight < limit && !waiting.isEmpty()) {
+			Subscriber<? super Boolean> next = waiting.poll();
+			if (!next.isUnsubscribed()) {
+				inFlight++;
+				granted.add(next);
+			}
+		}
+		return granted;
+	}
+
+	private void grant(Subscriber<? super Boolean> subscriber) {
+		if (subscriber.isUnsubscribed()) {
+			release();
+			return;
+		}
+		subscriber.onNext(Boolean.TRUE);
+		subscriber.onCompleted();
+	}
+
+	private void maybeAdjust() {
+		if (!adaptiveConcurrency) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long next = nextAdjustment.get();
+		if (now < next
+				|| !nextAdjustment.compareAndSet(next, now + controlInterval)) {
+			return;
+		}
+		adjust();
+	}
+
+	private void adjust() {
+		List<Subscriber<? super Boolean>> granted;
+		synchronized (this) {
+			intervalHistogram = latencies.getIntervalHistogram(intervalHistogram);
+			long congestion = congestionSignals.getAndSet(0);
+			long p99 = TimeUnit.MICROSECONDS.toMillis(intervalHistogram
+					.getValueAtPercentile(99));
+			int previous = limit;
+			if (congestion > 0 || p99 > latencyTarget) {
+				limit = Math.min(maxConcurrency, Math.max(minConcurrentUpserts,
+						(int) (limit * concurrencyDecreaseFactor)));
+			} else if (saturated) {
+				// only grow when the window is actually used
+				limit = Math.min(maxConcurrency, limit + concurrencyIncrease);
+			}
+			saturated = false;
+			if (previous != limit && log.isDebugEnabled()) {
+				log.debug(String.format(
+						"Concurrency window %d -> %d (p99 %dms, %d congestion signals)",
+						previous, limit, p99, congestion));
+			}
+			granted = pollWaiting();
+		}
+		granted.forEach(this::grant);
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Split CSV files whose quoted values contain line feeds and escaped
+ * quotes, and check every boundary against the offsets of the records
+ * written.
+ *
+ * @author ldoguin
+ */
+public class CSVSplitterTest {
+
+	private static final int RECORDS = 200;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Offset of each record, the first one being the header. */
+	private final List<Long> records = new ArrayList<Long>();
+
+	private FileChannel channel;
+
+	@After
+	public void closeFile() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write a header and RECORDS records, one in three having a quoted value
+	 * spanning several lines, with escaped quotes.
+	 */
+	private long writeFile(boolean quoted) throws IOException {
+		StringBuilder csv = new StringBuilder();
+		records.add(0L);
+		csv.append(quoted ? "id,\"multi\nline header\"\n" : "id,text\n");
+		for (int i = 0; i < RECORDS; i++) {
+			records.add((long) csv.toString()
+					.getBytes(StandardCharsets.UTF_8).length);
+			if (quoted && i % 3 == 0) {
+				csv.append(i).append(",\"first line\n\"\"second\"\" line,\n")
+						.append("third line \u00e9\"\n");
+			} else {
+				csv.append(i).append(",text \u00e9 ").append(i).append('\n');
+			}
+		}
+		File file = folder.newFile("test.csv");
+		Files.write(file.toPath(), csv.toString()
+				.getBytes(StandardCharsets.UTF_8));
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		return channel.size();
+	}
+
+	private void assertBoundaries(long[] boundaries, long start, long size) {
+		assertEquals(start, boundaries[0]);
+		assertEquals(size, boundaries[boundaries.length - 1]);
+		for (int i = 1; i < boundaries.length; i++) {
+			assertTrue(boundaries[i - 1] < boundaries[i]);
+			if (i < boundaries.length - 1) {
+				assertTrue("Not a record boundary: " + boundaries[i],
+						records.contains(boundaries[i]));
+			}
+		}
+	}
+
+	@Test
+	public void findsTheRecordAfterAQuotedHeader() throws IOException {
+		writeFile(true);
+		assertEquals(records.get(1).longValue(),
+				new CSVSplitter(channel, '"').nextRecord(0));
+	}
+
+	@Test
+	public void splitsOnRecordBoundariesOutsideQuotes() throws IOException {
+		long size = writeFile(true);
+		CSVSplitter splitter = new CSVSplitter(channel, '"');
+		long start = records.get(1);
+		for (int splits = 1; splits <= 64; splits++) {
+			long[] boundaries = splitter.split(start, splits);
+			assertBoundaries(boundaries, start, size);
+			assertTrue(boundaries.length - 1 <= splits);
+		}
+	}
+
+	@Test
+	public void splitsUnquotedFilesOnLineFeeds() throws IOException {
+		long size = writeFile(false);
+		CSVSplitter splitter = new CSVSplitter(channel, '\0');
+		long start = records.get(1);
+		for (int splits = 1; splits <= 64; splits++) {
+			assertBoundaries(splitter.split(start, splits), start, size);
+		}
+	}
+
+	@Test
+	public void givesLessRangesThanRecordsWhenAskedForMore()
+			throws IOException {
+		long size = writeFile(true);
+		long[] boundaries = new CSVSplitter(channel, '"').split(
+				records.get(1), 10 * RECORDS);
+		assertBoundaries(boundaries, records.get(1), size);
+		assertTrue(boundaries.length - 1 <= RECORDS);
+	}
+
+	@Test
+	public void skipsRecordsWithQuotedLineFeeds() throws IOException {
+		long size = writeFile(true);
+		CSVSplitter splitter = new CSVSplitter(channel, '"');
+		long start = records.get(1);
+		for (int skipped = 0; skipped < RECORDS; skipped++) {
+			assertEquals(records.get(1 + skipped).longValue(),
+					splitter.skipRecords(start, size, skipped));
+		}
+		assertEquals(size, splitter.skipRecords(start, size, RECORDS));
+		assertEquals(size, splitter.skipRecords(start, size, RECORDS + 1));
+	}
+
+	@Test
+	public void resumesEachRangeAfterItsImportedRecords() throws IOException {
+		long size = writeFile(true);
+		CSVSplitter splitter = new CSVSplitter(channel, '"');
+		long[] boundaries = splitter.split(records.get(1), 7);
+		for (int i = 0; i < boundaries.length - 1; i++) {
+			int first = records.indexOf(boundaries[i]);
+			int last = i == boundaries.length - 2 ? records.size() : records
+					.indexOf(boundaries[i + 1]);
+			for (int skipped = 0; skipped <= last - first; skipped++) {
+				long expected = first + skipped < last ? records.get(first
+						+ skipped) : boundaries[i + 1];
+				assertEquals(expected, splitter.skipRecords(boundaries[i],
+						boundaries[i + 1], skipped));
+			}
+		}
+		assertEquals(size, boundaries[boundaries.length - 1]);
+	}
+}
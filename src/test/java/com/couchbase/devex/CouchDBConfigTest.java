@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.couchbase.client.java.document.Document;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Run the CouchDB importer against a local stub of _all_docs serving the
+ * keys k000 to k099, supporting the startkey, endkey, inclusive_end, skip
+ * and limit parameters.
+ *
+ * @author ldoguin
+ */
+public class CouchDBConfigTest {
+
+	private static final int DOCUMENTS = 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<String> keys = new ArrayList<String>();
+
+	private final List<String> requests = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private HttpServer server;
+
+	private CouchDBConfig config;
+
+	@Before
+	public void startServer() throws IOException {
+		for (int i = 0; i < DOCUMENTS; i++) {
+			keys.add(String.format("k%03d", i));
+		}
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/db/_all_docs", this::allDocs);
+		server.start();
+		config = new CouchDBConfig();
+		config.setDownloadURL("http://127.0.0.1:"
+				+ server.getAddress().getPort()
+				+ "/db/_all_docs?include_docs=true");
+		config.checkpoints = checkpoints(null);
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	private Checkpoints checkpoints(String resumePositions) throws IOException {
+		Checkpoints checkpoints = new Checkpoints();
+		File file = new File(folder.getRoot(), "checkpoint.json");
+		ReflectionTestUtils.setField(checkpoints, "checkpointFilename",
+				file.getPath());
+		ReflectionTestUtils.setField(checkpoints, "checkpointInterval", 1000L);
+		if (resumePositions != null) {
+			Files.write(file.toPath(),
+					resumePositions.getBytes(StandardCharsets.UTF_8));
+			checkpoints.resume();
+		}
+		return checkpoints;
+	}
+
+	private void allDocs(HttpExchange exchange) throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		for (String parameter : exchange.getRequestURI().getRawQuery()
+				.split("&")) {
+			String[] nameValue = parameter.split("=", 2);
+			parameters.put(nameValue[0],
+					URLDecoder.decode(nameValue[1], "UTF-8"));
+		}
+		requests.add(exchange.getRequestURI().getRawQuery());
+		String startKey = unquote(parameters.get("startkey"));
+		String endKey = unquote(parameters.get("endkey"));
+		boolean inclusiveEnd = !"false".equals(parameters
+				.get("inclusive_end"));
+		int skip = Integer.parseInt(parameters.getOrDefault("skip", "0"));
+		int limit = Integer.parseInt(parameters.getOrDefault("limit",
+				String.valueOf(Integer.MAX_VALUE)));
+		int offset = 0;
+		while (startKey != null && offset < keys.size()
+				&& keys.get(offset).compareTo(startKey) < 0) {
+			offset++;
+		}
+		offset += skip;
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"total_rows\":").append(keys.size())
+				.append(",\"offset\":").append(offset).append(",\"rows\":[");
+		int count = 0;
+		for (int i = offset; i < keys.size() && count < limit; i++) {
+			String key = keys.get(i);
+			int c = endKey == null ? -1 : key.compareTo(endKey);
+			if (c > 0 || (c == 0 && !inclusiveEnd)) {
+				break;
+			}
+			if (count++ > 0) {
+				sb.append(',');
+			}
+			sb.append(String.format(
+					"{\"id\":\"%1$s\",\"key\":\"%1$s\",\"value\":{\"rev\":\"1-%1$s\"},"
+							+ "\"doc\":{\"_id\":\"%1$s\",\"_rev\":\"1-%1$s\",\"n\":%2$d}}",
+					key, i));
+		}
+		sb.append("]}");
+		byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static String unquote(String json) {
+		return json == null ? null : json.substring(1, json.length() - 1);
+	}
+
+	private List<String> importIds() {
+		List<String> ids = new ArrayList<String>();
+		for (Document document : config.startImport().toList().toBlocking()
+				.single()) {
+			ids.add(CheckpointTracker.unwrap(document).id());
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	@Test
+	public void readsEverythingInOneStream() {
+		assertEquals(keys, importIds());
+		assertEquals(1, requests.size());
+	}
+
+	@Test
+	public void readsEveryRangeOnce() {
+		config.setParallelism(3);
+		assertEquals(Arrays.asList("k033", "k066"), config.findSplitKeys());
+		requests.clear();
+		assertEquals(keys, importIds());
+		// limit=0 and two limit=1 queries to split, then one per range
+		assertEquals(3 + 3, requests.size());
+	}
+
+	@Test
+	public void readsRangesByPages() {
+		config.setParallelism(2);
+		config.setPageSize(7);
+		assertEquals(keys, importIds());
+		for (String request : requests) {
+			if (request.contains("startkey")) {
+				assertTrue(request, request.contains("limit=7"));
+			}
+		}
+		// 50 rows per range: 8 pages of 7 rows, the last one being partial,
+		// after the limit=0 and the limit=1 queries of the split
+		assertEquals(2 + 2 * 8, requests.size());
+	}
+
+	@Test
+	public void resumesAfterTheLastCheckpointedKey() throws IOException {
+		config.checkpoints = checkpoints("{\"couchdb:\":\"k041\",\"couchdb:k050\":\"k089\"}");
+		config.setParallelism(2);
+		config.setPageSize(4);
+		List<String> expected = new ArrayList<String>();
+		expected.addAll(keys.subList(42, 50));
+		expected.addAll(keys.subList(90, DOCUMENTS));
+		assertEquals(expected, importIds());
+	}
+}
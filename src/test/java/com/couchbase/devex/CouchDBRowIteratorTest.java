@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.couchbase.client.java.document.RawJsonDocument;
+
+/**
+ * @author ldoguin
+ */
+public class CouchDBRowIteratorTest {
+
+	private static final String HEADER = "{\"total_rows\":3,\"offset\":0,\"rows\":[";
+
+	private static final String ROWS = "{\"id\":\"a\",\"key\":\"a\",\"value\":{\"rev\":\"1-a\"},\"doc\":{\"_id\":\"a\",\"n\":1}},"
+			+ "{\"key\":\"b\",\"error\":\"not_found\"},"
+			+ "{\"id\":\"c\",\"key\":\"c\",\"value\":{\"rev\":\"1-c\"},\"doc\":{\"_id\":\"c\",\"n\":[3]}}";
+
+	private static CouchDBRowIterator rows(String json) throws IOException {
+		return new CouchDBRowIterator(new ByteArrayInputStream(
+				json.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void readsCompleteResponse() throws IOException {
+		try (CouchDBRowIterator rows = rows(HEADER + ROWS + "]}")) {
+			assertEquals(3, rows.getTotalRows());
+			assertTrue(rows.hasNext());
+			RawJsonDocument a = (RawJsonDocument) rows.next();
+			assertEquals("a", a.id());
+			assertEquals("{\"_id\":\"a\",\"n\":1}", a.content());
+			assertTrue(rows.hasNext());
+			RawJsonDocument c = (RawJsonDocument) rows.next();
+			assertEquals("c", c.id());
+			assertEquals("{\"_id\":\"c\",\"n\":[3]}", c.content());
+			assertFalse(rows.hasNext());
+			assertEquals(3, rows.getRowCount());
+			assertEquals("c", rows.getLastKey());
+		}
+	}
+
+	@Test
+	public void readsFieldsAfterRows() throws IOException {
+		try (CouchDBRowIterator rows = rows(HEADER + ROWS
+				+ "],\"update_seq\":[12,\"g1\"]}")) {
+			rows.next();
+			rows.next();
+			assertFalse(rows.hasNext());
+		}
+	}
+
+	@Test
+	public void readsEmptyResponse() throws IOException {
+		try (CouchDBRowIterator rows = rows("{\"total_rows\":0,\"offset\":0}")) {
+			assertFalse(rows.hasNext());
+		}
+	}
+
+	@Test
+	public void failsOnTruncatedRows() throws IOException {
+		assertTruncated(HEADER + ROWS);
+		assertTruncated(HEADER + ROWS + ",");
+		assertTruncated(HEADER + ROWS + "]");
+		assertTruncated(HEADER + "{\"id\":\"a\",\"key\":\"a\"");
+	}
+
+	@Test(expected = IOException.class)
+	public void failsOnTruncatedHeader() throws IOException {
+		rows("{\"total_rows\":3,\"offset\":0").close();
+	}
+
+	private static void assertTruncated(String json) throws IOException {
+		try (CouchDBRowIterator rows = rows(json)) {
+			while (rows.hasNext()) {
+				rows.next();
+			}
+			fail("Truncated response read as complete: " + json);
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+	}
+}
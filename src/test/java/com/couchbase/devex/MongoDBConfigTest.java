@@ -0,0 +1,421 @@
+/*
+ * Copyright 2015 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.couchbase.devex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+import com.couchbase.client.java.document.Document;
+import com.mongodb.rx.client.MongoClient;
+import com.mongodb.rx.client.MongoCollection;
+
+/**
+ * Run the MongoDB importer against an in-memory stand-in of a collection of
+ * 100 documents with increasing ObjectIds, ten seconds apart. The stand-in
+ * supports the $gt, $gte and $lt filters on _id, sorts on _id, limits, and a
+ * $sample aggregation which can be made to fail like on servers older than
+ * MongoDB 3.2. Range cursors are read on io threads, with a delay per
+ * document, to count how many are open at the same time.
+ *
+ * @author ldoguin
+ */
+public class MongoDBConfigTest {
+
+	private static final int DOCUMENTS = 100;
+
+	private static final int FIRST_TIMESTAMP = 1450000000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<ObjectId> ids = new ArrayList<ObjectId>();
+
+	private final List<org.bson.Document> documents = new ArrayList<org.bson.Document>();
+
+	private boolean sampleSupported = true;
+
+	private long documentDelay = 0;
+
+	private final AtomicInteger openCursors = new AtomicInteger();
+
+	private final AtomicInteger maxOpenCursors = new AtomicInteger();
+
+	private final CountDownLatch clientClosed = new CountDownLatch(1);
+
+	private MongoDBConfig config;
+
+	private MongoDBConfig.CollectionConfig collectionConfig;
+
+	@Before
+	public void createCollection() throws IOException {
+		for (int i = 0; i < DOCUMENTS; i++) {
+			ObjectId id = new ObjectId(FIRST_TIMESTAMP + 10 * i, 0, (short) 0,
+					i);
+			ids.add(id);
+			documents.add(new org.bson.Document("_id", id).append("n", i));
+		}
+		config = new MongoDBConfig();
+		config.parallelism = 1;
+		config.jsonMode = BsonJsonWriter.JsonMode.STRICT;
+		config.checkpoints = checkpoints(null);
+		collectionConfig = new MongoDBConfig.CollectionConfig();
+		collectionConfig.setCollectionName("docs");
+		collectionConfig = collectionConfig.resolve("test", "docs", "type");
+	}
+
+	private Checkpoints checkpoints(String resumePositions) throws IOException {
+		Checkpoints checkpoints = new Checkpoints();
+		File file = new File(folder.getRoot(), "checkpoint.json");
+		ReflectionTestUtils.setField(checkpoints, "checkpointFilename",
+				file.getPath());
+		ReflectionTestUtils.setField(checkpoints, "checkpointInterval", 1000L);
+		if (resumePositions != null) {
+			Files.write(file.toPath(),
+					resumePositions.getBytes(StandardCharsets.UTF_8));
+			checkpoints.resume();
+		}
+		return checkpoints;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, StubHandler handler) {
+		return (T) Proxy.newProxyInstance(
+				MongoDBConfigTest.class.getClassLoader(),
+				new Class<?>[] { type },
+				(proxy, method, args) -> handler.invoke(proxy, method,
+						args == null ? new Object[0] : args));
+	}
+
+	private interface StubHandler {
+		Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable;
+	}
+
+	private MongoClient client() {
+		Object database = stub(com.mongodb.rx.client.MongoDatabase.class, (
+				proxy, method, args) -> {
+			if ("getCollection".equals(method.getName())) {
+				return collection();
+			}
+			throw new UnsupportedOperationException(method.getName());
+		});
+		return stub(MongoClient.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "getDatabase":
+				return database;
+			case "close":
+				clientClosed.countDown();
+				return null;
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private MongoCollection<org.bson.Document> collection() {
+		return stub(MongoCollection.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "find":
+				Query query = new Query();
+				for (Object arg : args) {
+					if (arg instanceof Class) {
+						query.raw = arg == RawBsonDocument.class;
+					} else {
+						query.filter = (org.bson.Document) arg;
+					}
+				}
+				return query.observable();
+			case "aggregate":
+				return stub(method.getReturnType(), (p, m, a) -> {
+					if (!"toObservable".equals(m.getName())) {
+						return p;
+					}
+					return sampleSupported ? Observable.from(sample(
+							(List<org.bson.Document>) args[0])) : Observable
+							.error(new IllegalStateException(
+									"Unrecognized pipeline stage name: '$sample'"));
+				});
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	/**
+	 * The _id of size random documents, or of every document if there are
+	 * fewer, sorted by _id.
+	 */
+	private List<org.bson.Document> sample(List<org.bson.Document> pipeline) {
+		org.bson.Document sample = (org.bson.Document) pipeline.get(0).get(
+				"$sample");
+		List<ObjectId> sampled = new ArrayList<ObjectId>(ids);
+		Collections.shuffle(sampled, new Random(42));
+		sampled = sampled.subList(0,
+				Math.min(sample.getInteger("size"), sampled.size()));
+		Collections.sort(sampled);
+		List<org.bson.Document> result = new ArrayList<org.bson.Document>();
+		for (ObjectId id : sampled) {
+			result.add(new org.bson.Document("_id", id));
+		}
+		return result;
+	}
+
+	/**
+	 * The state of one find, applied to the documents on toObservable.
+	 */
+	private class Query {
+
+		boolean raw;
+
+		org.bson.Document filter;
+
+		int order = 1;
+
+		int limit = 0;
+
+		Object observable() {
+			return stub(com.mongodb.rx.client.FindObservable.class, (proxy,
+					method, args) -> {
+				switch (method.getName()) {
+				case "filter":
+					filter = (org.bson.Document) args[0];
+					return proxy;
+				case "sort":
+					order = ((org.bson.Document) args[0]).getInteger("_id");
+					return proxy;
+				case "limit":
+					limit = (Integer) args[0];
+					return proxy;
+				case "projection":
+				case "batchSize":
+					return proxy;
+				case "toObservable":
+					return raw ? cursor() : Observable.from(run());
+				default:
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+		}
+
+		/**
+		 * The documents read on an io thread, counting the open cursors.
+		 */
+		Observable<Object> cursor() {
+			return Observable.defer(() -> {
+				int open = openCursors.incrementAndGet();
+				maxOpenCursors.accumulateAndGet(open, Math::max);
+				return Observable.from(run()).doOnNext(d -> {
+					try {
+						Thread.sleep(documentDelay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}).doOnTerminate(openCursors::decrementAndGet);
+			}).subscribeOn(Schedulers.io());
+		}
+
+		List<Object> run() {
+			List<Object> result = new ArrayList<Object>();
+			for (int i = 0; i < DOCUMENTS; i++) {
+				org.bson.Document document = documents
+						.get(order > 0 ? i : DOCUMENTS - 1 - i);
+				if (!matches(document.getObjectId("_id"))) {
+					continue;
+				}
+				result.add(raw ? new RawBsonDocument(document,
+						new DocumentCodec()) : document);
+				if (result.size() == limit) {
+					break;
+				}
+			}
+			return result;
+		}
+
+		private boolean matches(ObjectId id) {
+			if (filter == null) {
+				return true;
+			}
+			for (Map.Entry<String, Object> condition : ((org.bson.Document) filter
+					.get("_id")).entrySet()) {
+				int c = id.compareTo((ObjectId) condition.getValue());
+				switch (condition.getKey()) {
+				case "$gt":
+					if (c <= 0) {
+						return false;
+					}
+					break;
+				case "$gte":
+					if (c < 0) {
+						return false;
+					}
+					break;
+				case "$lt":
+					if (c >= 0) {
+						return false;
+					}
+					break;
+				default:
+					throw new UnsupportedOperationException(condition.getKey());
+				}
+			}
+			return true;
+		}
+	}
+
+	private static List<String> hex(List<ObjectId> ids) {
+		List<String> hex = new ArrayList<String>();
+		for (ObjectId id : ids) {
+			hex.add(id.toHexString());
+		}
+		return hex;
+	}
+
+	private List<String> read(Observable<Document> documents, boolean sort) {
+		List<String> keys = new ArrayList<String>();
+		for (Document document : documents.toList().toBlocking().single()) {
+			keys.add(CheckpointTracker.unwrap(document).id());
+		}
+		if (sort) {
+			Collections.sort(keys);
+		}
+		return keys;
+	}
+
+	private List<String> importKeys() {
+		return read(Observable.merge(config.readRanges(client(),
+				collectionConfig)), true);
+	}
+
+	@Test
+	public void readsEverythingInOneRange() {
+		assertEquals(hex(ids), importKeys());
+	}
+
+	@Test
+	public void splitsOnSampledQuantiles() {
+		config.parallelism = 4;
+		assertEquals(
+				new ArrayList<Object>(Arrays.asList(ids.get(25),
+						ids.get(50), ids.get(75))),
+				config.findSplitPoints(collection()).toBlocking().single());
+		assertEquals(hex(ids), importKeys());
+	}
+
+	@Test
+	public void splitsByTimestampWithoutSample() {
+		sampleSupported = false;
+		config.parallelism = 4;
+		List<Object> splitPoints = config.findSplitPoints(collection())
+				.toBlocking().single();
+		assertEquals(3, splitPoints.size());
+		// 247, 495 and 742 seconds after the first document
+		assertEquals(FIRST_TIMESTAMP + 247,
+				((ObjectId) splitPoints.get(0)).getTimestamp());
+		assertEquals(FIRST_TIMESTAMP + 495,
+				((ObjectId) splitPoints.get(1)).getTimestamp());
+		assertEquals(FIRST_TIMESTAMP + 742,
+				((ObjectId) splitPoints.get(2)).getTimestamp());
+		assertEquals(hex(ids), importKeys());
+	}
+
+	@Test
+	public void readsRangeBoundsInOrder() {
+		assertEquals(hex(ids.subList(20, 30)), read(config.readRange(
+				collection(), collectionConfig, ids.get(20), ids.get(30)),
+				false));
+		assertEquals(hex(ids.subList(0, 10)), read(config.readRange(
+				collection(), collectionConfig, null, ids.get(10)), false));
+		assertEquals(hex(ids.subList(90, DOCUMENTS)), read(config.readRange(
+				collection(), collectionConfig, ids.get(90), null), false));
+	}
+
+	@Test
+	public void resumesEachRangeAfterItsLastCheckpointedId()
+			throws IOException {
+		config.checkpoints = checkpoints(String.format(
+				"{\"mongodb:test.docs\":\"%s\",\"mongodb:test.docs>=%s\":\"%s\"}",
+				ids.get(10), ids.get(50), ids.get(60)));
+		config.parallelism = 2;
+		List<ObjectId> expected = new ArrayList<ObjectId>();
+		expected.addAll(ids.subList(11, 50));
+		expected.addAll(ids.subList(61, DOCUMENTS));
+		assertEquals(hex(expected), importKeys());
+	}
+
+	@Test
+	public void readsEveryRangeOfEveryCollectionUnderOneCursorBudget()
+			throws InterruptedException {
+		MongoClient client = client();
+		config = new MongoDBConfig() {
+			@Override
+			MongoClient createClient() {
+				return client;
+			}
+		};
+		config.parallelism = 4;
+		config.maxConcurrentCursors = 3;
+		config.typeField = "type";
+		config.jsonMode = BsonJsonWriter.JsonMode.STRICT;
+		config.checkpoints = new Checkpoints();
+		for (String name : Arrays.asList("a", "b")) {
+			MongoDBConfig.CollectionConfig collection = new MongoDBConfig.CollectionConfig();
+			collection.setDbName("test");
+			collection.setCollectionName(name);
+			collection.setKeyTemplate("{collection}::{id}");
+			config.getCollections().add(collection);
+		}
+		documentDelay = 1;
+		List<String> expected = new ArrayList<String>();
+		for (String name : Arrays.asList("a", "b")) {
+			for (String id : hex(ids)) {
+				expected.add(name + "::" + id);
+			}
+		}
+		assertEquals(expected, read(config.startImport(), true));
+		// 8 ranges of 25 documents, 3 at a time
+		assertEquals(3, maxOpenCursors.get());
+		assertTrue(clientClosed.await(1, TimeUnit.SECONDS));
+	}
+}